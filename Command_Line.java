@@ -1,13 +1,267 @@
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 public class Command_Line {
-    private static String currentDirectory;
+    private String currentDirectory;
+    // Every file access goes through this, so a session can run on an in-memory file system
+    private final FileSystem fileSystem;
     private Scanner scanner;
     private boolean isRunning;
+    // When set, redirects are forced to disk before they are reported as done
+    private boolean syncWrites = Boolean.getBoolean("cli.fsync");
+
+    // Open channels kept for repeated >> appends, least recently used first
+    private static final int APPEND_CACHE_SIZE = 16;
+    private static final long APPEND_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private final Map<Path, AppendHandle> appendChannels = new LinkedHashMap<Path, AppendHandle>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, AppendHandle> eldest) {
+            if (size() > APPEND_CACHE_SIZE) {
+                eldest.getValue().retire();
+                return true;
+            }
+            return false;
+        }
+    };
+    private Timer appendSweeper;
+
+    // Writers of one file in this JVM queue on its stripe, so only one of them at a time takes the file
+    // lock that coordinates with other processes. Readers share the stripe with each other but not with writers.
+    private static final int LOCK_STRIPES = 64;
+    private static final ReentrantReadWriteLock[] LOCK_TABLE = new ReentrantReadWriteLock[LOCK_STRIPES];
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            LOCK_TABLE[i] = new ReentrantReadWriteLock();
+        }
+    }
+    // Contention counters shown by the locks command
+    private static final LongAdder LOCK_ACQUISITIONS = new LongAdder();
+    private static final LongAdder STRIPE_WAITS = new LongAdder();
+    private static final LongAdder FILE_LOCK_WAITS = new LongAdder();
+    private static final LongAdder LOCK_TIMEOUTS = new LongAdder();
+    private static final LongAdder LOCK_WAIT_NANOS = new LongAdder();
+    private long lockTimeoutMillis = Long.getLong("cli.lockTimeout", 10000);
+
+    // In trash mode rm renames into a trash directory on the file's own volume instead of deleting, so it
+    // takes the same time for any tree and restore can undo it; a background thread purges old entries
+    private boolean trash = Boolean.getBoolean("cli.trash");
+    private long trashRetentionMillis = Long.getLong("cli.trashRetention", TimeUnit.HOURS.toMillis(1));
+    // Deletions per second the purger may issue, so it never competes with the shell for the disk
+    private static final int TRASH_PURGE_RATE = Integer.getInteger("cli.trashPurgeRate", 500);
+    private static final String TRASH_INFO_SUFFIX = ".trashinfo";
+    // Entries being purged are renamed with this prefix first, so restore never sees half of one
+    private static final String TRASH_PURGE_PREFIX = ".purge-";
+    // Trash directory of each volume used so far; also guards restoring and claiming entries
+    private final Map<FileStore, Path> trashDirectories = new HashMap<>();
+    private Thread trashPurger;
+
+    private CommandHistory history = new CommandHistory(null);
+
+    // Set with export or set; names not set here fall back to the process environment
+    private final Map<String, String> variables = new TreeMap<>();
+    // Commands with no side effects, whose $(...) output can be reused within a line
+    private static final Set<String> PURE_COMMANDS = new HashSet<>(Arrays.asList(
+            "cat", "cmp", "complete", "crc32", "diff", "help", "history", "ls", "md5sum", "pwd", "sha256sum", "zcat"));
+    // Commands that never look at their arguments, so substitutions there are not run
+    private static final Set<String> IGNORED_ARGUMENT_COMMANDS = new HashSet<>(Arrays.asList("exit", "help", "pwd"));
+
+    // One JSON object per pipeline, stage and file operation, for sessions recorded without JFR
+    private Writer traceLog;
+
+    // The cp, mv or rm -r in progress, if any; Ctrl-C cancels it instead of ending the shell
+    private volatile Progress progress;
+    private static final long PROGRESS_DELAY_MILLIS = 500;
+    private static final long PROGRESS_INTERVAL_MILLIS = 200;
+
+    // Names offered by completion; keep in sync with the cases in processCommand
+    private static final NavigableSet<String> COMMANDS = new TreeSet<>(Arrays.asList(
+            "cat", "cd", "cmp", "complete", "cp", "crc32", "diff", "exit", "export", "gunzip", "gzip", "help", "history",
+            "locks", "ls", "md5sum", "mkdir", "mv", "on-change", "pwd", "restore", "rm", "rmdir", "set", "sha256sum",
+            "sync", "touch", "unset", "watch", "xargs", "zcat", ">", ">>"));
+    private static final int COMPLETION_LIMIT = 100;
+    // Most arguments xargs passes to one invocation when -n is not given
+    private static final int XARGS_MAX_ARGS = 5000;
+    // Commands whose arguments are file names and so go through glob expansion
+    private static final Set<String> GLOB_COMMANDS = new HashSet<>(Arrays.asList(
+            "cat", "cmp", "cp", "crc32", "diff", "gunzip", "gzip", "md5sum", "mkdir", "mv", "rm", "rmdir", "sha256sum",
+            "sync", "touch", "zcat"));
+    private static final int GLOB_CACHE_SIZE = 128;
+    private static final int PATH_CACHE_SIZE = 4096;
+
+    // Checksum commands and the algorithm each one uses
+    private static final Map<String, String> CHECKSUM_ALGORITHMS = new HashMap<>();
+    static {
+        CHECKSUM_ALGORITHMS.put("sha256sum", "SHA-256");
+        CHECKSUM_ALGORITHMS.put("md5sum", "MD5");
+        CHECKSUM_ALGORITHMS.put("crc32", "CRC32");
+    }
+    // Files at least this big are hashed through memory-mapped chunks of MAP_CHUNK bytes
+    private static final long MAP_THRESHOLD = 1L << 20;
+    private static final long MAP_CHUNK = 64L << 20;
+    // cmp compares mapped files in chunks this big on all cores; chunks past a known difference are skipped
+    private static final long CMP_CHUNK = 4L << 20;
+
+    // Inputs this big are compressed as independent blocks on all cores, as pigz does
+    private static final long PARALLEL_GZIP_THRESHOLD = 1L << 20;
+    private static final int GZIP_BLOCK_SIZE = 128 * 1024;
+    private static final int GZIP_DICTIONARY_SIZE = 32 * 1024;
+    // Kept in the destination of sync; what each file looked like when it was last synced
+    private static final String SYNC_MANIFEST = ".sync-manifest";
+    // watch and on-change take the rest of the line as the command to re-run, pipes and redirects included
+    private static final Pattern WATCH_LINE = Pattern.compile("(watch|on-change)((?:\\s+-[nc]\\s+\\S+)*)\\s+(.+)");
+    // on-change runs once a burst of events has been quiet this long
+    private static final long ON_CHANGE_SETTLE_MILLIS = 100;
+    // How often on-change rescans a directory whose file system has no change notification
+    private static final long ON_CHANGE_POLL_MILLIS = 500;
+    // Bounds how long a change made outside this shell can go unnoticed
+    private static final long STAT_CACHE_MILLIS = 1000;
+    private static final int DIRECTORY_INDEX_CACHE_SIZE = 64;
+
+    // Sorted entry names of recently completed directories; a prefix lookup is a range query
+    private final Map<Path, DirectoryIndex> directoryIndexes = new LinkedHashMap<Path, DirectoryIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, DirectoryIndex> eldest) {
+            return size() > DIRECTORY_INDEX_CACHE_SIZE;
+        }
+    };
+
+    // Compiled glob matchers by pattern, least recently used first
+    private final Map<String, PathMatcher> globMatchers = new LinkedHashMap<String, PathMatcher>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PathMatcher> eldest) {
+            return size() > GLOB_CACHE_SIZE;
+        }
+    };
+
+    // Names resolved against a directory, keyed by directory and name; pure string work, never stale
+    private final Map<String, Path> resolvedPaths = new LinkedHashMap<String, Path>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Path> eldest) {
+            return size() > PATH_CACHE_SIZE;
+        }
+    };
+
+    // Existence and type of resolved paths; dropped whenever this shell changes the file system
+    private final Map<Path, CachedStat> pathAttributes = new LinkedHashMap<Path, CachedStat>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, CachedStat> eldest) {
+            return size() > PATH_CACHE_SIZE;
+        }
+    };
+
+    private static class CachedStat {
+        final BasicFileAttributes attributes;
+        final long checkedAt;
+
+        CachedStat(BasicFileAttributes attributes, long checkedAt) {
+            this.attributes = attributes;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private static class DirectoryIndex {
+        final NavigableSet<String> names = new TreeSet<>();
+        long modified;
+    }
+
+    private static class AppendHandle {
+        final Path path;
+        final FileChannel channel;
+        final Object fileKey;
+        long lastUsed;
+        // Appends writing through the channel right now; it is only closed once they are done
+        int users;
+        boolean retired;
+
+        AppendHandle(Path path, FileChannel channel, Object fileKey) {
+            this.path = path;
+            this.channel = channel;
+            this.fileKey = fileKey;
+        }
+
+        // Called with the handle out of the cache, under its lock
+        void retire() {
+            if (users == 0) {
+                close();
+            } else {
+                retired = true;
+            }
+        }
+
+        void release() {
+            if (--users == 0 && retired) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // The channel is being discarded anyway
+            }
+        }
+    }
 
     public Command_Line() {
-        currentDirectory = System.getProperty("user.dir");
+        this(FileSystems.getDefault(), System.getProperty("user.dir"));
+    }
+
+    public Command_Line(FileSystem fileSystem) {
+        this(fileSystem, fileSystem.getRootDirectories().iterator().next().toString());
+    }
+
+    public Command_Line(FileSystem fileSystem, String directory) {
+        this.fileSystem = fileSystem;
+        currentDirectory = directory;
         scanner = new Scanner(System.in);
         isRunning = true;
     }
@@ -24,11 +278,60 @@ public class Command_Line {
         this.scanner = scanner;
     }
 
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    public void setLockTimeout(long millis) {
+        this.lockTimeoutMillis = millis;
+    }
+
+    public void setTrash(boolean trash) {
+        this.trash = trash;
+    }
+
+    public void setTrashRetention(long millis) {
+        synchronized (trashDirectories) {
+            this.trashRetentionMillis = millis;
+            // Wake the purger so a shorter retention takes effect now
+            trashDirectories.notifyAll();
+        }
+    }
+
+    // Appends a JSON line per pipeline, stage and file operation to the file; null stops tracing
+    public void setTraceFile(File file) {
+        synchronized (this) {
+            closeTrace();
+            if (file == null) {
+                return;
+            }
+            try {
+                traceLog = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.out.println("Cannot write trace file " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void setHistoryFile(File file) {
+        history.close();
+        history = new CommandHistory(file);
+    }
+
 
     public void start() {
+        handleInterrupts();
         while (isRunning) {
             System.out.print(currentDirectory + "$ ");
-            String input = scanner.nextLine().trim();
+            String line = scanner.nextLine();
+            // The terminal passes a typed tab through as part of the line
+            if (line.endsWith("\t")) {
+                for (String candidate : complete(line.substring(0, line.length() - 1))) {
+                    System.out.println(candidate);
+                }
+                continue;
+            }
+            String input = line.trim();
 
             if (!input.isEmpty()) {
                 processInput(input);
@@ -37,47 +340,328 @@ public class Command_Line {
     }
 
     public void processInput(String input) {
+        if (input.startsWith("!")) {
+            String expanded = expandHistory(input);
+            if (expanded == null) {
+                System.out.println(input + ": event not found");
+                return;
+            }
+            // Show what is actually being run, as other shells do
+            System.out.println(expanded);
+            input = expanded;
+        }
+        history.add(input);
+
         if (input.startsWith("cat >")) {
             // Handle cat > and cat >> commands
             boolean append = input.startsWith("cat >>");
-            String filename = input.substring(append ? 6 : 5).trim();
+            String filename = expandVariables(input.substring(append ? 6 : 5).trim(), new HashMap<>());
             handleCatRedirection(filename, append);
             return;
         }
 
-        String[] pipedCommands = input.split("\\|");
-        String result = null;
+        if (input.matches("(watch|on-change)(\\s.*)?")) {
+            repeat(input);
+            return;
+        }
+        runLine(input);
+    }
+
+    private void runLine(String input) {
+        String[] pipedCommands = splitOutsideSubstitutions(input, '|');
+        PipelineEvent event = new PipelineEvent();
+        long started = System.nanoTime();
+        event.begin();
+        long outputBytes = runPipeline(pipedCommands, new HashMap<>(), System.out);
+        event.end();
+        if (event.shouldCommit() || traceLog != null) {
+            event.line = input;
+            event.stages = pipedCommands.length;
+            event.outputBytes = outputBytes;
+            event.commit();
+            trace("pipeline", started, "line", input, "stages", pipedCommands.length, "outputBytes", outputBytes);
+            flushTrace();
+        }
+    }
+
+    // Runs the stages in order, writes the last one's output to out and returns how many bytes it produced.
+    // Each stage is expanded just before it runs; substitutions maps pure $(...) commands to their output.
+    private long runPipeline(String[] pipedCommands, Map<String, String> substitutions, PrintStream out) {
+        // Stages pass raw bytes to each other; text is only decoded for commands that work on text
+        byte[] result = null;
 
         for (int i = 0; i < pipedCommands.length; i++) {
             String currentCommand = pipedCommands[i].trim();
+            String unsubstituted = maskSubstitutions(currentCommand);
 
             // Handle redirection at the end of the pipe chain
-            if (i == pipedCommands.length - 1 && (currentCommand.contains(">") || currentCommand.equals(">"))) {
-                String[] redirectParts = currentCommand.split(">");
-                String file = redirectParts[redirectParts.length - 1].trim();
+            if (i == pipedCommands.length - 1 && (unsubstituted.contains(">") || currentCommand.equals(">"))) {
+                String[] redirectParts = splitOutsideSubstitutions(currentCommand, '>');
+                boolean append = unsubstituted.contains(">>");
+                if (redirectParts.length < 2 || redirectParts[redirectParts.length - 1].trim().isEmpty()) {
+                    out.print(append ? "Usage: >> <file_name> [<text_to_append>]\n" : "Usage: > <file_name> <text_to_write>\n");
+                    return 0;
+                }
+                String file = expandVariables(redirectParts[redirectParts.length - 1].trim(), substitutions);
 
                 // If there's a command before the redirection, process it
                 if (redirectParts[0].trim().length() > 0) {
-                    result = processCommand(redirectParts[0].trim(), result);
+                    result = runStage(expandCommand(redirectParts[0].trim(), substitutions), result);
+                }
+
+                // Handle the redirection; only a failure is reported
+                String written = append ? appendToFile(file, result != null ? result : new byte[0])
+                        : writeToFile(file, result != null ? result : new byte[0]);
+                if (!written.startsWith("Content ")) {
+                    out.print(written);
+                }
+                return result != null ? result.length : 0;
+            }
+
+            result = runStage(expandCommand(currentCommand, substitutions), result);
+
+            // Only print output if it's the last command and not being redirected
+            if (i == pipedCommands.length - 1 && result != null && result.length > 0) {
+                out.write(result, 0, result.length);
+                out.flush();
+            }
+        }
+        return result != null ? result.length : 0;
+    }
+
+    // watch and on-change: run the rest of the line again and again until Ctrl-C or the -c count runs out
+    private void repeat(String input) {
+        Matcher line = WATCH_LINE.matcher(input);
+        boolean watch = input.startsWith("watch");
+        String usage = watch ? "Usage: watch [-n <seconds>] [-c <count>] <command>\n"
+                : "Usage: on-change [-c <count>] <directory> <command>\n";
+        if (!line.matches()) {
+            System.out.print(usage);
+            return;
+        }
+        double seconds = 2;
+        int count = -1;
+        String[] options = line.group(2).trim().isEmpty() ? new String[0] : line.group(2).trim().split("\\s+");
+        try {
+            for (int i = 0; i < options.length; i += 2) {
+                if (options[i].equals("-n") && watch) {
+                    seconds = Math.max(0.1, Double.parseDouble(options[i + 1]));
+                } else if (options[i].equals("-c")) {
+                    count = Integer.parseInt(options[i + 1]);
+                    if (count < 1) {
+                        throw new NumberFormatException();
+                    }
+                } else {
+                    System.out.print(usage);
+                    return;
                 }
+            }
+        } catch (NumberFormatException e) {
+            System.out.print(usage);
+            return;
+        }
 
-                // Handle the redirection
-                boolean append = currentCommand.contains(">>");
-                if (append) {
-                    appendToFile(file, result != null ? result : "");
+        beginProgress(watch ? "watch" : "on-change", new String[0], 0, 0);
+        try {
+            if (watch) {
+                watch(line.group(3), seconds, count);
+            } else {
+                String[] target = line.group(3).split("\\s+", 2);
+                if (target.length < 2) {
+                    System.out.print(usage);
+                } else if (!isDirectory(resolve(target[0]))) {
+                    System.out.print("on-change: " + target[0] + ": not a directory\n");
                 } else {
-                    writeToFile(file, result != null ? result : "");
+                    onChange(resolve(target[0]), target[1], count);
                 }
+            }
+        } finally {
+            // Ctrl-C is how these normally end, so it is not reported as a cancellation
+            endProgress();
+        }
+    }
+
+    private void watch(String command, double seconds, int count) {
+        long interval = (long) (seconds * 1000);
+        for (int run = 1; count < 0 || run <= count; run++) {
+            long started = System.currentTimeMillis();
+            System.out.print("Every " + seconds + "s: " + command + "  " + LocalTime.now().withNano(0) + "\n\n");
+            runLine(command);
+            if (run == count || !sleepUntil(started + interval)) {
                 return;
             }
+        }
+    }
 
-            result = processCommand(currentCommand, result);
+    // Waits until the given time, or returns false as soon as Ctrl-C is pressed
+    private boolean sleepUntil(long deadline) {
+        for (long left = deadline - System.currentTimeMillis(); left > 0; left = deadline - System.currentTimeMillis()) {
+            if (cancelRequested()) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(left, 100));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !cancelRequested();
+    }
 
-            // Only print output if it's the last command and not being redirected
-            if (i == pipedCommands.length - 1 && result != null && !result.isEmpty()) {
-                System.out.print(result);
+    // Runs the command after each change below the directory, with the changed paths appended to its first
+    // stage (or in $CHANGED, when the command uses that). Events come from a WatchService; file systems
+    // without one are rescanned every ON_CHANGE_POLL_MILLIS instead.
+    private void onChange(Path dir, String command, int count) {
+        String previousChanged = variables.get("CHANGED");
+        WatchService watcher;
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+        } catch (UnsupportedOperationException | IOException e) {
+            watcher = null;
+        }
+        try {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            Map<String, BasicFileAttributes> snapshot = null;
+            if (watcher != null) {
+                registerTree(watcher, dir, keys);
+            } else {
+                snapshot = walkTree(dir);
+            }
+            System.out.print("Watching " + dir + " (Ctrl-C to stop)\n");
+            for (int run = 1; count < 0 || run <= count; run++) {
+                Set<Path> changed = new TreeSet<>();
+                if (watcher != null) {
+                    if (!awaitEvents(watcher, keys, changed)) {
+                        return;
+                    }
+                } else {
+                    while (changed.isEmpty()) {
+                        if (!sleepUntil(System.currentTimeMillis() + ON_CHANGE_POLL_MILLIS)) {
+                            return;
+                        }
+                        Map<String, BasicFileAttributes> current = walkTree(dir);
+                        changedEntries(snapshot, current, dir, changed);
+                        snapshot = current;
+                    }
+                }
+                runLine(withChangedPaths(command, changed));
+            }
+        } catch (IOException e) {
+            System.out.print("on-change: " + e.getMessage() + "\n");
+        } finally {
+            // $CHANGED only means something while on-change runs
+            if (previousChanged != null) {
+                variables.put("CHANGED", previousChanged);
+            } else {
+                variables.remove("CHANGED");
+            }
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
+    // A WatchService only reports on one directory, so every directory of the tree is registered
+    private void registerTree(WatchService watcher, Path dir, Map<WatchKey, Path> keys) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdirectory, BasicFileAttributes attrs) throws IOException {
+                keys.put(subdirectory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), subdirectory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Blocks until something changes, then gathers events until they have been quiet for
+    // ON_CHANGE_SETTLE_MILLIS, so a burst of writes leads to one run. False when Ctrl-C was pressed.
+    private boolean awaitEvents(WatchService watcher, Map<WatchKey, Path> keys, Set<Path> changed) throws IOException {
+        try {
+            WatchKey key = null;
+            while (key == null) {
+                if (cancelRequested()) {
+                    return false;
+                }
+                key = watcher.poll(100, TimeUnit.MILLISECONDS);
+            }
+            while (key != null) {
+                Path dir = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        // Events were lost; all that is known is that something below changed
+                        changed.add(dir != null ? dir : keys.values().iterator().next());
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    changed.add(path);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        registerTree(watcher, path, keys);
+                    }
+                }
+                if (!key.reset()) {
+                    keys.remove(key);
+                }
+                key = watcher.poll(ON_CHANGE_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            for (Path path : changed) {
+                pathChanged(path);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+
+    private void changedEntries(Map<String, BasicFileAttributes> before, Map<String, BasicFileAttributes> after,
+                                Path dir, Set<Path> changed) {
+        for (Map.Entry<String, BasicFileAttributes> entry : after.entrySet()) {
+            BasicFileAttributes old = before.get(entry.getKey());
+            BasicFileAttributes now = entry.getValue();
+            if (old == null || (!now.isDirectory() && (old.size() != now.size()
+                    || !old.lastModifiedTime().equals(now.lastModifiedTime())))) {
+                changed.add(dir.resolve(entry.getKey()));
+            }
+        }
+        for (String name : before.keySet()) {
+            if (!after.containsKey(name)) {
+                changed.add(dir.resolve(name));
+            }
+        }
+        for (Path path : changed) {
+            pathChanged(path);
+        }
+    }
+
+    private String withChangedPaths(String command, Set<Path> changed) {
+        Path current = resolve("");
+        StringBuilder paths = new StringBuilder();
+        for (Path path : changed) {
+            if (paths.length() > 0) {
+                paths.append(' ');
+            }
+            paths.append(path.startsWith(current) && !path.equals(current) ? current.relativize(path) : path);
+        }
+        variables.put("CHANGED", paths.toString());
+        if (command.contains("$CHANGED") || command.contains("${CHANGED}")) {
+            return command;
+        }
+        String masked = maskSubstitutions(command);
+        int end = masked.length();
+        for (int i = 0; i < masked.length(); i++) {
+            if (masked.charAt(i) == '|' || masked.charAt(i) == '>') {
+                end = i;
+                break;
             }
         }
+        return command.substring(0, end).trim() + " " + paths + (end < command.length() ? " " + command.substring(end) : "");
     }
 
     void handleCatRedirection(String filename, boolean append) {
@@ -100,108 +684,568 @@ public class Command_Line {
         }
     }
 
-    private String processCommand(String command, String input) {
-        String[] cmdParts = command.split("\\s+");
-        StringBuilder output = new StringBuilder();
+    private String expandHistory(String input) {
+        String event = input.substring(1);
+        if (event.equals("!")) {
+            return history.get(history.size());
+        }
+        try {
+            int number = Integer.parseInt(event);
+            return history.get(number < 0 ? history.size() + number + 1 : number);
+        } catch (NumberFormatException e) {
+            return event.isEmpty() ? null : history.latestWithPrefix(event);
+        }
+    }
 
-        switch (cmdParts[0].toLowerCase()) {
-            case "exit":
-                isRunning = false;
-                System.out.println("Exiting...");
-                return null;
+    // Expands one stage lazily: the command name first, then the arguments only if the command exists
+    // and reads them, so a substitution in an argument nobody uses never runs
+    private String expandCommand(String command, Map<String, String> substitutions) {
+        if (command.indexOf('$') < 0) {
+            return command;
+        }
+        String masked = maskSubstitutions(command);
+        int nameEnd = 0;
+        while (nameEnd < masked.length() && !Character.isWhitespace(masked.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        String name = expandVariables(command.substring(0, nameEnd), substitutions);
+        String commandName = name.trim().toLowerCase();
+        if (!COMMANDS.contains(commandName) || IGNORED_ARGUMENT_COMMANDS.contains(commandName)) {
+            return name + command.substring(nameEnd);
+        }
+        return name + expandVariables(command.substring(nameEnd), substitutions);
+    }
 
-            case "rmdir":
-                if (cmdParts.length > 1) {
-                    for (int i = 1; i < cmdParts.length; i++) {
-                        output.append(removeDirectory(cmdParts[i]));
-                    }
-                } else {
-                    output.append("Usage: rmdir <directory_name1> [<directory_name2> ...]\n");
+    // Replaces $NAME, ${NAME} and $(command) in the text; \$ stands for a literal dollar sign
+    private String expandVariables(String text, Map<String, String> substitutions) {
+        if (text.indexOf('$') < 0) {
+            return text;
+        }
+        StringBuilder expanded = new StringBuilder();
+        // Next '}' at or after i; only searched again once passed, so a line of unclosed ${ stays linear
+        int closingBrace = text.indexOf('}');
+        int i = 0;
+        while (i < text.length()) {
+            if (closingBrace >= 0 && closingBrace < i) {
+                closingBrace = text.indexOf('}', i);
+            }
+            char c = text.charAt(i);
+            char next = i + 1 < text.length() ? text.charAt(i + 1) : '\0';
+            if (c == '\\' && next == '$') {
+                expanded.append('$');
+                i += 2;
+            } else if (c == '$' && next == '(') {
+                int end = closingParenthesis(text, i + 1);
+                if (end < 0) {
+                    // Unterminated: keep the rest as typed
+                    expanded.append(text, i, text.length());
+                    break;
                 }
-                break;
+                expanded.append(substitute(text.substring(i + 2, end).trim(), substitutions));
+                i = end + 1;
+            } else if (c == '$' && next == '{' && closingBrace >= 0) {
+                expanded.append(variable(text.substring(i + 2, closingBrace)));
+                i = closingBrace + 1;
+            } else if (c == '$' && (Character.isLetter(next) || next == '_')) {
+                int end = i + 1;
+                while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+                    end++;
+                }
+                expanded.append(variable(text.substring(i + 1, end)));
+                i = end;
+            } else {
+                expanded.append(c);
+                i++;
+            }
+        }
+        return expanded.toString();
+    }
 
-            case "ls":
-                output.append(listDirectory(command.contains(" -a"), command.contains(" -r")));
-                break;
+    private String variable(String name) {
+        if (name.equals("PWD")) {
+            return currentDirectory;
+        }
+        String value = variables.get(name);
+        if (value == null) {
+            value = System.getenv(name);
+        }
+        return value != null ? value : "";
+    }
 
-            case "cp":
-                if (cmdParts.length == 3) {
-                    output.append(copyFileOrToDirectory(cmdParts[1], cmdParts[2]));
-                } else if (cmdParts.length > 3) {
-                    // Multiple files to directory case
-                    String destDir = cmdParts[cmdParts.length - 1];
-                    File dest = new File(currentDirectory, destDir);
+    // Runs the command line inside $(...) and returns its output without trailing newlines. A line made only
+    // of pure commands gives the same output every time, so it is run once per line however often it appears.
+    private String substitute(String commandLine, Map<String, String> substitutions) {
+        String cached = substitutions.get(commandLine);
+        if (cached != null) {
+            return cached;
+        }
+        String[] stages = splitOutsideSubstitutions(commandLine, '|');
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        runPipeline(stages, substitutions, new PrintStream(buffer));
+        String output = buffer.toString();
+        int end = output.length();
+        while (end > 0 && (output.charAt(end - 1) == '\n' || output.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        output = output.substring(0, end);
+        if (isPure(stages)) {
+            substitutions.put(commandLine, output);
+        }
+        return output;
+    }
 
-                    if (!dest.exists()) {
-                        output.append("Destination directory does not exist: ").append(destDir).append("\n");
-                    } else if (!dest.isDirectory()) {
-                        output.append("Destination must be a directory when copying multiple files\n");
-                    } else {
-                        // Copy each file to the destination directory
-                        for (int i = 1; i < cmdParts.length - 1; i++) {
-                            output.append(copyFileOrToDirectory(cmdParts[i], destDir));
-                        }
-                    }
-                } else {
-                    output.append("Usage: cp <source_file(s)> <destination>\n");
-                }
-                break;
+    private boolean isPure(String[] stages) {
+        for (String stage : stages) {
+            String masked = maskSubstitutions(stage.trim());
+            String name = masked.split("\\s+", 2)[0].toLowerCase();
+            if (!PURE_COMMANDS.contains(name) || masked.contains(">")) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            case "pwd":
-                output.append(currentDirectory).append("\n");
-                break;
+    // Index of the parenthesis closing the one at open, or -1
+    private static int closingParenthesis(String text, int open) {
+        int depth = 0;
+        for (int i = open; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-            case "mkdir":
-                if (cmdParts.length > 1) {
-                    for (int i = 1; i < cmdParts.length; i++) {
-                        output.append(createDirectory(cmdParts[i]));
-                    }
-                } else {
-                    output.append("Usage: mkdir <directory_name1> [<directory_name2> ...]\n");
-                }
+    // The text with everything inside $(...) blanked out, so separators in there are not seen
+    private static String maskSubstitutions(String text) {
+        int start = text.indexOf("$(");
+        if (start < 0) {
+            return text;
+        }
+        char[] masked = text.toCharArray();
+        while (start >= 0) {
+            int end = closingParenthesis(text, start + 1);
+            if (end < 0) {
                 break;
+            }
+            if (start == 0 || text.charAt(start - 1) != '\\') {
+                Arrays.fill(masked, start + 2, end, ' ');
+            }
+            start = text.indexOf("$(", end);
+        }
+        return new String(masked);
+    }
 
-            case "rm":
-                if (cmdParts.length > 1) {
-                    if (cmdParts[1].equals("-r")) {
-                        for (int i = 2; i < cmdParts.length; i++) {
-                            output.append(removeDirectoryRecursive(cmdParts[i]));
-                        }
-                    } else {
-                        for (int i = 1; i < cmdParts.length; i++) {
-                            output.append(removeFile(cmdParts[i]));
-                        }
-                    }
-                } else {
-                    output.append("Usage: rm [-r] <file/directory>\n");
-                }
-                break;
+    // Like String.split on a single character, but separators inside $(...) belong to the substitution
+    private static String[] splitOutsideSubstitutions(String text, char separator) {
+        String masked = maskSubstitutions(text);
+        if (masked == text) {
+            return text.split(Pattern.quote(String.valueOf(separator)));
+        }
+        List<String> parts = new ArrayList<>();
+        int from = 0;
+        for (int i = masked.indexOf(separator); i >= 0; i = masked.indexOf(separator, i + 1)) {
+            parts.add(text.substring(from, i));
+            from = i + 1;
+        }
+        parts.add(text.substring(from));
+        while (parts.size() > 1 && parts.get(parts.size() - 1).isEmpty()) {
+            parts.remove(parts.size() - 1);
+        }
+        return parts.toArray(new String[0]);
+    }
 
-            case ">":
-                if (cmdParts.length == 3) {
-                    output.append(writeToFile(cmdParts[1], cmdParts[2]));
-                } else {
-                    output.append("Usage: > <file_name> <text_to_write>\n");
-                }
+    private String setVariables(String[] cmdParts) {
+        StringBuilder output = new StringBuilder();
+        if (cmdParts.length == 1) {
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                output.append(variable.getKey()).append("=").append(variable.getValue()).append("\n");
+            }
+            return output.toString();
+        }
+        for (int i = 1; i < cmdParts.length; i++) {
+            int equals = cmdParts[i].indexOf('=');
+            String name = equals > 0 ? cmdParts[i].substring(0, equals) : cmdParts[i];
+            if (!name.matches("[A-Za-z_][A-Za-z0-9_]*") || (equals < 0 && !cmdParts[0].equalsIgnoreCase("unset"))) {
+                output.append(cmdParts[0]).append(": not a valid assignment: ").append(cmdParts[i]).append("\n");
+            } else if (cmdParts[0].equalsIgnoreCase("unset")) {
+                variables.remove(name);
+            } else {
+                variables.put(name, cmdParts[i].substring(equals + 1));
+            }
+        }
+        return output.toString();
+    }
+
+    private String listHistory(String[] cmdParts) {
+        StringBuilder output = new StringBuilder();
+        if (cmdParts.length >= 3 && cmdParts[1].equals("-s")) {
+            String text = String.join(" ", Arrays.copyOfRange(cmdParts, 2, cmdParts.length));
+            for (int number : history.search(text, 20)) {
+                output.append(String.format("%5d  %s\n", number, history.get(number)));
+            }
+            return output.toString();
+        }
+
+        int total = history.size();
+        int first = 1;
+        if (cmdParts.length == 2) {
+            try {
+                first = Math.max(1, total - Integer.parseInt(cmdParts[1]) + 1);
+            } catch (NumberFormatException e) {
+                return "Usage: history [<count>] | history -s <text>\n";
+            }
+        }
+        for (int number = first; number <= total; number++) {
+            output.append(String.format("%5d  %s\n", number, history.get(number)));
+        }
+        return output.toString();
+    }
+
+    // Resolves a name typed by the user to an absolute, normalized path: ~ is the home directory,
+    // absolute names stand alone and everything else is relative to the current directory
+    private Path resolve(String name) {
+        String key = currentDirectory + '\0' + name;
+        synchronized (resolvedPaths) {
+            Path resolved = resolvedPaths.get(key);
+            if (resolved != null) {
+                return resolved;
+            }
+        }
+        Path resolved;
+        if (name.equals("~") || name.startsWith("~/")) {
+            resolved = homeDirectory().resolve(name.equals("~") ? "" : name.substring(2));
+        } else {
+            resolved = fileSystem.getPath(currentDirectory).resolve(name);
+        }
+        resolved = resolved.toAbsolutePath().normalize();
+        synchronized (resolvedPaths) {
+            resolvedPaths.put(key, resolved);
+        }
+        return resolved;
+    }
+
+    private Path homeDirectory() {
+        if (fileSystem == FileSystems.getDefault()) {
+            return fileSystem.getPath(System.getProperty("user.home"));
+        }
+        return fileSystem.getRootDirectories().iterator().next();
+    }
+
+    // Attributes of the path, or null if it does not exist; cached until something changes the file system
+    private BasicFileAttributes stat(Path path) {
+        long now = System.currentTimeMillis();
+        synchronized (pathAttributes) {
+            CachedStat cached = pathAttributes.get(path);
+            if (cached != null && now - cached.checkedAt < STAT_CACHE_MILLIS) {
+                return cached.attributes;
+            }
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attributes = null;
+        }
+        synchronized (pathAttributes) {
+            pathAttributes.put(path, new CachedStat(attributes, now));
+        }
+        return attributes;
+    }
+
+    private boolean exists(Path path) {
+        return stat(path) != null;
+    }
+
+    private boolean isDirectory(Path path) {
+        BasicFileAttributes attributes = stat(path);
+        return attributes != null && attributes.isDirectory();
+    }
+
+    private byte[] runStage(String command, byte[] input) {
+        StageEvent event = new StageEvent();
+        long started = System.nanoTime();
+        event.begin();
+        byte[] output = null;
+        String result = "ok";
+        try {
+            output = executeStage(command, input);
+            return output;
+        } catch (RuntimeException | Error e) {
+            result = e.getClass().getName();
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit() || traceLog != null) {
+                String[] words = command.trim().split("\\s+", 2);
+                event.command = words[0];
+                event.arguments = words.length > 1 ? words[1] : "";
+                event.inputBytes = input != null ? input.length : 0;
+                event.outputBytes = output != null ? output.length : 0;
+                event.result = result;
+                event.commit();
+                trace("stage", started, "command", event.command, "arguments", event.arguments,
+                        "inputBytes", event.inputBytes, "outputBytes", event.outputBytes, "result", result);
+            }
+        }
+    }
+
+    private byte[] executeStage(String command, byte[] input) {
+        String[] cmdParts = command.split("\\s+");
+        if (cmdParts[0].equalsIgnoreCase("cat") && (cmdParts.length > 1 || input != null)) {
+            return catBytes(expandGlobs(cmdParts), input);
+        }
+        if (CHECKSUM_ALGORITHMS.containsKey(cmdParts[0].toLowerCase()) && cmdParts.length == 1 && input != null) {
+            // Hash piped bytes directly; decoding them first would change binary input
+            Checksum checksum = Checksum.of(CHECKSUM_ALGORITHMS.get(cmdParts[0].toLowerCase()));
+            checksum.update(ByteBuffer.wrap(input));
+            return (checksum.hex() + "  -\n").getBytes();
+        }
+        String name = cmdParts[0].toLowerCase();
+        if (name.equals("zcat") || ((name.equals("gzip") || name.equals("gunzip")) && cmdParts.length == 1 && input != null)) {
+            return gzipStage(name, expandGlobs(cmdParts), input);
+        }
+        String output = processCommand(command, input != null ? new String(input) : null);
+        return output != null ? output.getBytes() : null;
+    }
+
+    // gzip, gunzip and zcat as pipeline stages: bytes in, bytes out
+    private byte[] gzipStage(String name, String[] cmdParts, byte[] input) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            if (name.equals("gzip")) {
+                compress(new ByteArrayInputStream(input), input.length, output, Deflater.DEFAULT_COMPRESSION);
+            } else if (cmdParts.length == 1) {
+                if (input != null) {
+                    decompress(new ByteArrayInputStream(input), output);
+                }
+            } else {
+                for (int i = 1; i < cmdParts.length; i++) {
+                    Path file = resolve(cmdParts[i]);
+                    if (!exists(file)) {
+                        output.writeBytes(("File not found: " + cmdParts[i] + "\n").getBytes());
+                        continue;
+                    }
+                    try (InputStream in = Files.newInputStream(file)) {
+                        decompress(in, output);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            output.writeBytes((name + ": " + e.getMessage() + "\n").getBytes());
+        }
+        return output.toByteArray();
+    }
+
+    // cat copies bytes through unchanged unless --encoding asks for the input to be decoded as text
+    private byte[] catBytes(String[] cmdParts, byte[] input) {
+        Charset encoding = null;
+        List<String> fileNames = new ArrayList<>();
+        for (int i = 1; i < cmdParts.length; i++) {
+            if (cmdParts[i].equals("--encoding")) {
+                if (i + 1 == cmdParts.length) {
+                    return "Usage: cat [--encoding <charset>] [<file_name> ...]\n".getBytes();
+                }
+                try {
+                    encoding = Charset.forName(cmdParts[++i]);
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    return ("Unsupported encoding: " + cmdParts[i] + "\n").getBytes();
+                }
+            } else {
+                fileNames.add(cmdParts[i]);
+            }
+        }
+
+        if (fileNames.isEmpty()) {
+            return input == null ? new byte[0] : transcode(input, encoding);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (String fileName : fileNames) {
+            byte[] contents = readFileContents(fileName);
+            if (contents == null) {
+                output.writeBytes(("File not found: " + fileName + "\n").getBytes());
+            } else {
+                output.writeBytes(transcode(contents, encoding));
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private byte[] transcode(byte[] bytes, Charset encoding) {
+        return encoding == null ? bytes : new String(bytes, encoding).getBytes();
+    }
+
+    private String processCommand(String command, String input) {
+        String[] cmdParts = command.split("\\s+");
+        if (GLOB_COMMANDS.contains(cmdParts[0].toLowerCase())) {
+            cmdParts = expandGlobs(cmdParts);
+        }
+        StringBuilder output = new StringBuilder();
+
+        switch (cmdParts[0].toLowerCase()) {
+            case "exit":
+                closeAppendChannels();
+                history.close();
+                closeTrace();
+                isRunning = false;
+                System.out.println("Exiting...");
+                return null;
+
+            case "rmdir":
+                if (cmdParts.length > 1) {
+                    for (int i = 1; i < cmdParts.length; i++) {
+                        output.append(removeDirectory(cmdParts[i]));
+                    }
+                } else {
+                    output.append("Usage: rmdir <directory_name1> [<directory_name2> ...]\n");
+                }
                 break;
 
+            case "ls":
+                output.append(listDirectory(command.contains(" -a"), command.contains(" -r")));
+                break;
 
-            case "cat":
-                if (cmdParts.length == 1) {
-                    if (input != null) {
-                        // If there's piped input, display it directly
-                        return input;
+            case "cp":
+                boolean verifyCopy = cmdParts.length > 1 && cmdParts[1].equals("--verify");
+                if (verifyCopy) {
+                    List<String> args = new ArrayList<>(Arrays.asList(cmdParts));
+                    args.remove(1);
+                    cmdParts = args.toArray(new String[0]);
+                }
+                if (cmdParts.length == 3) {
+                    beginProgress("cp", cmdParts, 1, 2);
+                    output.append(copyFileOrToDirectory(cmdParts[1], cmdParts[2], verifyCopy));
+                    output.append(endProgress());
+                } else if (cmdParts.length > 3) {
+                    // Multiple files to directory case
+                    String destDir = cmdParts[cmdParts.length - 1];
+                    Path dest = resolve(destDir);
+
+                    if (!exists(dest)) {
+                        output.append("Destination directory does not exist: ").append(destDir).append("\n");
+                    } else if (!isDirectory(dest)) {
+                        output.append("Destination must be a directory when copying multiple files\n");
                     } else {
-                        readFromUserInput();
+                        // Copy each file to the destination directory; between files is a safe point to stop
+                        beginProgress("cp", cmdParts, 1, cmdParts.length - 1);
+                        for (int i = 1; i < cmdParts.length - 1 && !cancelRequested(); i++) {
+                            output.append(copyFileOrToDirectory(cmdParts[i], destDir, verifyCopy));
+                        }
+                        output.append(endProgress());
                     }
                 } else {
+                    output.append("Usage: cp <source_file(s)> <destination>\n");
+                }
+                break;
+
+            case "complete":
+                for (String candidate : complete(command.length() > 9 ? command.substring(9) : "")) {
+                    output.append(candidate).append("\n");
+                }
+                break;
+
+            case "sha256sum":
+            case "md5sum":
+            case "crc32":
+                output.append(checksumCommand(cmdParts));
+                break;
+
+            case "gzip":
+            case "gunzip":
+                output.append(gzipFiles(cmdParts));
+                break;
+
+            case "sync":
+                output.append(syncDirectories(cmdParts));
+                break;
+
+            case "history":
+                output.append(listHistory(cmdParts));
+                break;
+
+            case "locks":
+                output.append(lockStatistics());
+                break;
+
+            case "restore":
+                output.append(restore(cmdParts));
+                break;
+
+            case "watch":
+            case "on-change":
+                // Only reached when not at the start of the line, e.g. inside a pipe
+                output.append(cmdParts[0]).append(": must start the command line\n");
+                break;
+
+            case "cmp":
+                output.append(compareFiles(cmdParts));
+                break;
+
+            case "diff":
+                output.append(diff(cmdParts));
+                break;
+
+            case "xargs":
+                output.append(xargs(cmdParts, input));
+                break;
+
+            case "export":
+            case "set":
+            case "unset":
+                output.append(setVariables(cmdParts));
+                break;
+
+            case "pwd":
+                output.append(currentDirectory).append("\n");
+                break;
+
+            case "mkdir":
+                if (cmdParts.length > 1) {
                     for (int i = 1; i < cmdParts.length; i++) {
-                        output.append(displayFileContents(cmdParts[i]));
+                        output.append(createDirectory(cmdParts[i]));
+                    }
+                } else {
+                    output.append("Usage: mkdir <directory_name1> [<directory_name2> ...]\n");
+                }
+                break;
+
+            case "rm":
+                if (cmdParts.length > 1) {
+                    if (cmdParts[1].equals("-r")) {
+                        beginProgress("rm", cmdParts, 2, cmdParts.length);
+                        for (int i = 2; i < cmdParts.length && !cancelRequested(); i++) {
+                            output.append(trash ? moveToTrash(cmdParts[i], true) : removeDirectoryRecursive(cmdParts[i]));
+                        }
+                        output.append(endProgress());
+                    } else {
+                        for (int i = 1; i < cmdParts.length; i++) {
+                            output.append(trash ? moveToTrash(cmdParts[i], false) : removeFile(cmdParts[i]));
+                        }
                     }
+                } else {
+                    output.append("Usage: rm [-r] <file/directory>\n");
+                }
+                break;
+
+            case ">":
+                if (cmdParts.length == 3) {
+                    output.append(writeToFile(cmdParts[1], cmdParts[2]));
+                } else {
+                    output.append("Usage: > <file_name> <text_to_write>\n");
                 }
                 break;
 
 
+            case "cat":
+                // cat with files or piped input runs as a byte stage in executeStage; alone it reads from the user
+                readFromUserInput();
+                break;
+
+
             case ">>":
                 if (cmdParts.length >= 2) {
                     String fileName = cmdParts[1];
@@ -229,14 +1273,16 @@ public class Command_Line {
             case "mv":
                 if (cmdParts.length >= 3) {
                     String destPath = cmdParts[cmdParts.length - 1];
-                    File dest = new File(currentDirectory, destPath);
+                    Path dest = resolve(destPath);
 
-                    if (cmdParts.length > 3 && !dest.isDirectory()) {
+                    if (cmdParts.length > 3 && !isDirectory(dest)) {
                         output.append("Destination must be a directory when moving multiple files\n");
                     } else {
-                        for (int i = 1; i < cmdParts.length - 1; i++) {
+                        beginProgress("mv", cmdParts, 1, cmdParts.length - 1);
+                        for (int i = 1; i < cmdParts.length - 1 && !cancelRequested(); i++) {
                             output.append(moveFileOrDirectory(cmdParts[i], destPath));
                         }
+                        output.append(endProgress());
                     }
                 } else {
                     output.append("Usage: mv <source(s)> <destination>\n");
@@ -261,14 +1307,31 @@ public class Command_Line {
                 output.append("touch <filename>         - Creates a new empty file.\n");
                 output.append("rmdir <directory_name>   - Removes an empty directory.\n");
                 output.append("ls [-a] [-r]             - Lists files in the current directory.\n");
-                output.append("cp <source_file> <destination_file>  - Copies a file.\n");
-                output.append("cat <file_name>          - Displays contents of a file.\n");
+                output.append("cp [--verify] <source_file> <destination_file>  - Copies a file (--verify checks the copy's SHA-256).\n");
+                output.append("cat [--encoding <charset>] <file_name> - Displays contents of a file.\n");
                 output.append(">> <file_name> <text>    - Appends text to a file.\n");
-                output.append("rm <file_name>           - Removes a file.\n");
+                output.append("rm <file_name>           - Removes a file (into the trash in trash mode).\n");
                 output.append("mkdir <directory_name>    - Creates a new directory.\n");
                 output.append("pwd                      - Prints the current working directory.\n");
                 output.append("> <file_name> <text>     - Redirects output to a file (overwrites).\n");
                 output.append("| <command1> | <command2> - Pipes the output of command1 into command2.\n");
+                output.append("history [<count>]        - Lists previous commands (-s <text> searches them).\n");
+                output.append("!! | !<n> | !<prefix>    - Re-runs a previous command.\n");
+                output.append("sha256sum | md5sum | crc32 [-c <list>] <files> - Prints or verifies file checksums.\n");
+                output.append("gzip [-k] [-f] [-1..-9] <files> - Compresses files to <file>.gz (or piped input).\n");
+                output.append("gunzip [-k] [-f] <files.gz> - Decompresses .gz files (or piped input).\n");
+                output.append("zcat <files.gz>          - Prints decompressed .gz files.\n");
+                output.append("sync [-c] [--delete] <source_dir> <destination_dir> - Copies only new and changed files.\n");
+                output.append("export | set <NAME>=<value> - Sets a variable for $NAME, ${NAME} (unset removes it).\n");
+                output.append("$(<command>)             - Replaced by the output of the command.\n");
+                output.append("xargs [-n <count>] [-P <jobs>] <command> - Runs the command with piped words as arguments.\n");
+                output.append("locks                    - Shows file lock contention counters.\n");
+                output.append("watch [-n <seconds>] [-c <count>] <command> - Re-runs the command every 2 (or n) seconds.\n");
+                output.append("on-change [-c <count>] <dir> <command> - Runs the command with the changed paths after each change.\n");
+                output.append("restore [<name>]         - Lists the trash, or puts a removed file back where it was.\n");
+                output.append("cmp <file1> <file2>      - Reports the first differing byte (prints nothing if equal).\n");
+                output.append("diff [-r] <file1> <file2> - Shows line differences as unified hunks (-r compares directories).\n");
+                output.append("complete <partial_line>  - Lists completions for the last word (also on Tab).\n");
                 output.append("exit                     - Exits the command line.\n");
 
                 break;
@@ -277,329 +1340,3337 @@ public class Command_Line {
                 output.append("Unknown command: ").append(cmdParts[0]).append(". Type 'help' for a list of commands.\n");
                 return output.toString();
         }
-
+
+        return output.toString();
+    }
+
+    // Replaces {a,b} and *, ?, [...], ** patterns in the arguments by the names they produce
+    private String[] expandGlobs(String[] cmdParts) {
+        List<String> expanded = new ArrayList<>(cmdParts.length);
+        expanded.add(cmdParts[0]);
+        for (int i = 1; i < cmdParts.length; i++) {
+            String arg = cmdParts[i];
+            if (arg.startsWith("-")) {
+                expanded.add(arg);
+                continue;
+            }
+            for (String word : expandBraces(arg)) {
+                if (!hasWildcard(word)) {
+                    expanded.add(word);
+                    continue;
+                }
+                List<String> matches = expandGlob(word);
+                // Like other shells, a pattern that matches nothing is passed on as typed
+                if (matches.isEmpty()) {
+                    expanded.add(word);
+                } else {
+                    expanded.addAll(matches);
+                }
+            }
+        }
+        return expanded.toArray(new String[0]);
+    }
+
+    private boolean hasWildcard(String word) {
+        return word.indexOf('*') >= 0 || word.indexOf('?') >= 0 || word.indexOf('[') >= 0;
+    }
+
+    // a{b,c}d -> abd acd; braces generate names whether or not they exist, as in bash
+    private List<String> expandBraces(String word) {
+        int open = word.indexOf('{');
+        if (open < 0) {
+            return Collections.singletonList(word);
+        }
+        int depth = 0;
+        List<Integer> commas = new ArrayList<>();
+        for (int i = open; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == ',' && depth == 1) {
+                commas.add(i);
+            } else if (c == '}' && --depth == 0) {
+                if (commas.isEmpty()) {
+                    break;
+                }
+                String head = word.substring(0, open);
+                String tail = word.substring(i + 1);
+                List<String> words = new ArrayList<>();
+                int from = open + 1;
+                commas.add(i);
+                for (int comma : commas) {
+                    words.addAll(expandBraces(head + word.substring(from, comma) + tail));
+                    from = comma + 1;
+                }
+                return words;
+            }
+        }
+        return Collections.singletonList(word);
+    }
+
+    private List<String> expandGlob(String pattern) {
+        // Split off the leading directories that contain no wildcard; only the rest needs matching
+        String[] segments = pattern.split("/", -1);
+        int fixed = 0;
+        while (fixed < segments.length - 1 && !hasWildcard(segments[fixed])) {
+            fixed++;
+        }
+        String basePart = String.join("/", Arrays.copyOfRange(segments, 0, fixed));
+        String globPart = String.join("/", Arrays.copyOfRange(segments, fixed, segments.length));
+        String prefix = fixed == 0 ? "" : basePart + "/";
+
+        Path base = fixed == 0 ? resolve("") : resolve(fixed > 0 && basePart.isEmpty() ? "/" : basePart);
+        PathMatcher matcher;
+        try {
+            matcher = globMatcher(globPart);
+        } catch (PatternSyntaxException e) {
+            return Collections.emptyList();
+        }
+        boolean matchHidden = globPart.startsWith(".") || globPart.contains("/.");
+        int maxDepth = globPart.contains("**") ? Integer.MAX_VALUE : segments.length - fixed;
+
+        List<String> matches = new ArrayList<>();
+        try {
+            if (maxDepth == 1) {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(base)) {
+                    for (Path entry : entries) {
+                        Path name = entry.getFileName();
+                        if ((matchHidden || !name.toString().startsWith(".")) && matcher.matches(name)) {
+                            matches.add(prefix + name);
+                        }
+                    }
+                }
+            } else {
+                // One walk of the tree covers every level the pattern can reach
+                Files.walkFileTree(base, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (!dir.equals(base) && !matchHidden && dir.getFileName().toString().startsWith(".")) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        visit(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (matchHidden || !file.getFileName().toString().startsWith(".")) {
+                            visit(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    private void visit(Path path) {
+                        Path relative = base.relativize(path);
+                        if (!relative.toString().isEmpty() && matcher.matches(relative)) {
+                            matches.add(prefix + relative.toString().replace(fileSystem.getSeparator(), "/"));
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    private PathMatcher globMatcher(String glob) {
+        synchronized (globMatchers) {
+            PathMatcher matcher = globMatchers.get(glob);
+            if (matcher == null) {
+                matcher = fileSystem.getPathMatcher("glob:" + glob);
+                globMatchers.put(glob, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    // Completes the last word of the line: command names first, then paths
+    public List<String> complete(String line) {
+        int start = line.lastIndexOf(' ') + 1;
+        String word = line.substring(start);
+        String before = line.substring(0, start).trim();
+        List<String> candidates = new ArrayList<>();
+
+        if (before.isEmpty() || before.endsWith("|")) {
+            for (String name : COMMANDS.subSet(word, true, word + Character.MAX_VALUE, true)) {
+                candidates.add(name);
+            }
+            return candidates;
+        }
+
+        int slash = word.lastIndexOf('/');
+        String dirPart = word.substring(0, slash + 1);
+        String namePrefix = word.substring(slash + 1);
+        Path dir = resolve(dirPart);
+
+        NavigableSet<String> names = directoryIndex(dir);
+        synchronized (directoryIndexes) {
+            for (String name : names.subSet(namePrefix, true, namePrefix + Character.MAX_VALUE, true)) {
+                if (name.startsWith(".") && !namePrefix.startsWith(".")) {
+                    continue;
+                }
+                candidates.add(dirPart + name);
+                if (candidates.size() == COMPLETION_LIMIT) {
+                    break;
+                }
+            }
+        }
+        // Only the candidates shown are checked for being directories, not the whole listing
+        for (int i = 0; i < candidates.size(); i++) {
+            String candidate = candidates.get(i);
+            if (isDirectory(dir.resolve(candidate.substring(dirPart.length())))) {
+                candidates.set(i, candidate + "/");
+            }
+        }
+        return candidates;
+    }
+
+    private NavigableSet<String> directoryIndex(Path dir) {
+        Path key = dir.toAbsolutePath().normalize();
+        long modified = lastModified(dir);
+        synchronized (directoryIndexes) {
+            DirectoryIndex index = directoryIndexes.get(key);
+            if (index != null && index.modified == modified) {
+                return index.names;
+            }
+            // Changed outside this shell (or never listed): rescan
+            index = new DirectoryIndex();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    index.names.add(entry.getFileName().toString());
+                }
+            } catch (IOException e) {
+                // Nothing to complete in a directory we cannot read
+            }
+            index.modified = modified;
+            directoryIndexes.put(key, index);
+            return index.names;
+        }
+    }
+
+    private long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    // Called after this shell creates, replaces or removes the file: drops cached attributes
+    // and keeps a cached directory index current
+    private void pathChanged(Path file) {
+        synchronized (pathAttributes) {
+            pathAttributes.clear();
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent == null || file.getFileName() == null) {
+            return;
+        }
+        synchronized (directoryIndexes) {
+            if (directoryIndexes.isEmpty()) {
+                return;
+            }
+            DirectoryIndex index = directoryIndexes.get(parent.normalize());
+            if (index == null) {
+                return;
+            }
+            if (Files.exists(file)) {
+                index.names.add(file.getFileName().toString());
+            } else {
+                index.names.remove(file.getFileName().toString());
+            }
+            index.modified = lastModified(parent);
+        }
+    }
+
+    private String createDirectory(String dirName) {
+        return fileOperation("mkdir", dirName, null, () -> 0, () -> {
+            Path dir = resolve(dirName);
+            try {
+                Files.createDirectory(dir);
+            } catch (IOException e) {
+                return "Failed to create directory: " + dirName + "\n";
+            }
+            pathChanged(dir);
+            return "Directory created: " + dirName + "\n";
+        });
+    }
+
+    private String removeFile(String fileName) {
+        return fileOperation("rm", fileName, null, () -> 0, () -> {
+            Path file = resolve(fileName);
+            releaseAppendChannels(file);
+            boolean removed;
+            try {
+                removed = Files.deleteIfExists(file);
+            } catch (IOException e) {
+                removed = false;
+            }
+            pathChanged(file);
+            return removed ? "File removed: " + fileName + "\n" : "Failed to remove file: " + fileName + "\n";
+        });
+    }
+
+    private String writeToFile(String fileName, String content) {
+        return writeToFile(fileName, content.getBytes());
+    }
+
+    private String writeToFile(String fileName, byte[] content) {
+        return fileOperation("write", fileName, null, () -> content.length, () -> {
+            Path file = resolve(fileName);
+            Path target = file.toAbsolutePath();
+            // Write into a sibling temp file and rename it over the target, so a crash never leaves a half-written file
+            Path temp = target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+            Lock stripe = null;
+            // Set while the target is an empty file this call created just to lock it
+            Object createdKey = null;
+            try {
+                stripe = lockStripe(file, false, deadline);
+                releaseAppendChannels(file);
+                // Writers here and in other processes wait on the file being replaced until the rename is done
+                while (true) {
+                    FileChannel opened;
+                    boolean created = false;
+                    try {
+                        opened = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        created = true;
+                    } catch (FileAlreadyExistsException e) {
+                        opened = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    }
+                    try (FileChannel lockChannel = opened) {
+                        Object key = currentFileKey(target);
+                        if (created) {
+                            createdKey = key;
+                        }
+                        FileLock lock = lockChannel(lockChannel, false, deadline, file);
+                        try {
+                            if (!Objects.equals(key, currentFileKey(target))) {
+                                // Replaced by another writer while we waited for the lock; wait on the new file
+                                continue;
+                            }
+                            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                                writeFully(channel, content);
+                                if (syncWrites) {
+                                    channel.force(true);
+                                }
+                            }
+                            copyPermissions(target, temp);
+                            try {
+                                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                            } catch (AtomicMoveNotSupportedException e) {
+                                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                            }
+                            createdKey = null;
+                        } finally {
+                            release(lock);
+                        }
+                    }
+                    break;
+                }
+                pathChanged(file);
+                if (syncWrites) {
+                    syncDirectory(target.getParent());
+                }
+                return "Content written to " + fileName + "\n";
+            } catch (IOException e) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Nothing more to clean up
+                }
+                // Do not leave behind the empty file made for the lock, unless someone has replaced it since
+                if (createdKey != null && createdKey.equals(currentFileKey(target))) {
+                    try {
+                        if (Files.size(target) == 0) {
+                            Files.deleteIfExists(target);
+                            pathChanged(file);
+                        }
+                    } catch (IOException ignored) {
+                        // Leave it for the user to remove
+                    }
+                }
+                return "Failed to write to file: " + e.getMessage() + "\n";
+            } finally {
+                if (stripe != null) {
+                    stripe.unlock();
+                }
+            }
+        });
+    }
+
+    private byte[] readFully(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, channel.size()));
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                // The file grew since its size was read
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(8192, buffer.capacity() * 2));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void copyPermissions(Path from, Path to) {
+        try {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(from);
+            Files.setPosixFilePermissions(to, permissions);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Target is new or the file system has no POSIX permissions; keep the defaults
+        }
+    }
+
+    private void syncDirectory(Path dir) {
+        // Makes the rename itself durable; not every platform allows opening a directory
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Best effort only
+        }
+    }
+
+    private String removeDirectoryRecursive(String dirPath) {
+        return fileOperation("rm -r", dirPath, null, () -> 0, () -> {
+            Path dir = resolve(dirPath);
+            releaseAppendChannels(dir);
+            if (!exists(dir)) {
+                return "Directory not found: " + dirPath + "\n";
+            }
+            boolean removed = deleteRecursive(dir);
+            pathChanged(dir);
+            if (cancelRequested()) {
+                return "Stopped removing " + dirPath + "; entries not yet visited remain\n";
+            }
+            return removed ? "Removed directory and its contents: " + dirPath + "\n"
+                    : "Failed to remove directory: " + dirPath + "\n";
+        });
+    }
+
+    private boolean deleteRecursive(Path file) {
+        // Every entry is a safe point: a cancelled removal leaves whole files and non-empty directories
+        if (cancelRequested()) {
+            return false;
+        }
+        if (Files.isDirectory(file)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(file)) {
+                for (Path entry : entries) {
+                    deleteRecursive(entry);
+                }
+            } catch (IOException e) {
+                // Deleting the directory itself below reports the failure
+            }
+        }
+        try {
+            Files.delete(file);
+            recordProgress(0, 1);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String removeDirectory(String dirName) {
+        return fileOperation("rmdir", dirName, null, () -> 0, () -> {
+            Path dir = resolve(dirName);
+            if (!isDirectory(dir)) {
+                return dirName + " directory not found.\n";
+            }
+
+            try {
+                Files.delete(dir);
+                pathChanged(dir);
+                return dirName + " Directory removed.\n";
+            } catch (DirectoryNotEmptyException e) {
+                return dirName + " Directory is not empty.\n";
+            } catch (IOException e) {
+                return "Error removing directory: " + dirName + "\n";
+            }
+        });
+    }
+
+    // rm in trash mode: one rename into the trash of the file's volume, plus a small file recording where it was.
+    // Falls back to deleting when there is no usable trash there.
+    private String moveToTrash(String fileName, boolean recursive) {
+        Path file = resolve(fileName);
+        Path trashDir = exists(file) && (recursive || !isDirectory(file)) ? trashDirectory(file) : null;
+        if (trashDir == null || trashDir.startsWith(file) || file.startsWith(trashDir)) {
+            return recursive ? removeDirectoryRecursive(fileName) : removeFile(fileName);
+        }
+        String removed = recursive ? "Removed directory and its contents: " : "File removed: ";
+        return fileOperation("trash", fileName, trashDir.toString(), () -> 0, () -> {
+            releaseAppendChannels(file);
+            Path info = null;
+            try {
+                String name = file.getFileName() + "." + System.currentTimeMillis();
+                for (int attempt = 1; info == null; attempt++) {
+                    try {
+                        info = Files.write(trashDir.resolve("info").resolve(name + TRASH_INFO_SUFFIX),
+                                ("Path=" + file + "\nDeletionDate=" + Instant.now() + "\n").getBytes(StandardCharsets.UTF_8),
+                                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    } catch (FileAlreadyExistsException e) {
+                        name = file.getFileName() + "." + System.currentTimeMillis() + "-" + attempt;
+                    }
+                }
+                // Same volume, so this is a rename however large the tree is
+                Files.move(file, trashDir.resolve("files").resolve(name), StandardCopyOption.ATOMIC_MOVE);
+                pathChanged(file);
+                startTrashPurger();
+                return removed + fileName + " (moved to trash, restore " + file.getFileName() + " to undo)\n";
+            } catch (IOException e) {
+                if (info != null) {
+                    try {
+                        Files.deleteIfExists(info);
+                    } catch (IOException ignored) {
+                        // A record without its file is dropped by the purger
+                    }
+                }
+                return recursive ? removeDirectoryRecursive(fileName) : removeFile(fileName);
+            }
+        });
+    }
+
+    // The trash of the volume holding the file: ~/.cli-trash when the home directory is on it, otherwise
+    // .cli-trash-<user> at the top of the volume. Null when neither can be created.
+    private Path trashDirectory(Path file) {
+        try {
+            FileStore store = Files.getFileStore(file);
+            synchronized (trashDirectories) {
+                Path known = trashDirectories.get(store);
+                if (known != null) {
+                    return known;
+                }
+            }
+            Path home = homeDirectory();
+            Path trashDir;
+            if (Files.isDirectory(home) && Files.getFileStore(home).equals(store)) {
+                trashDir = home.resolve(".cli-trash");
+            } else {
+                Path top = file.toAbsolutePath();
+                while (top.getParent() != null && Files.getFileStore(top.getParent()).equals(store)) {
+                    top = top.getParent();
+                }
+                trashDir = top.resolve(".cli-trash-" + System.getProperty("user.name", "user"));
+            }
+            Files.createDirectories(trashDir.resolve("files"));
+            Files.createDirectories(trashDir.resolve("info"));
+            synchronized (trashDirectories) {
+                trashDirectories.put(store, trashDir);
+            }
+            return trashDir;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private String restore(String[] cmdParts) {
+        List<Path> trashDirs = new ArrayList<>();
+        Path current = trashDirectory(resolve(""));
+        if (current != null) {
+            trashDirs.add(current);
+        }
+        synchronized (trashDirectories) {
+            for (Path trashDir : trashDirectories.values()) {
+                if (!trashDirs.contains(trashDir)) {
+                    trashDirs.add(trashDir);
+                }
+            }
+        }
+        List<String[]> entries = new ArrayList<>();
+        for (Path trashDir : trashDirs) {
+            try (DirectoryStream<Path> infos = Files.newDirectoryStream(trashDir.resolve("info"), "*" + TRASH_INFO_SUFFIX)) {
+                for (Path info : infos) {
+                    String[] entry = readTrashInfo(info);
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                // An unreadable trash has nothing to restore
+            }
+        }
+        // Oldest first, so the last match for a name is the one removed most recently
+        entries.sort(Comparator.comparing(this::deletionTime));
+
+        StringBuilder output = new StringBuilder();
+        if (cmdParts.length == 1) {
+            for (String[] entry : entries) {
+                output.append(String.format("%-28s %s  %s\n", entry[0], entry[2], entry[1]));
+            }
+            return output.length() > 0 ? output.toString() : "Trash is empty\n";
+        }
+        for (int i = 1; i < cmdParts.length; i++) {
+            String wanted = cmdParts[i];
+            String wantedPath = resolve(wanted).toString();
+            String[] match = null;
+            for (String[] entry : entries) {
+                String original = entry[1];
+                if (entry[0].equals(wanted) || original.equals(wantedPath)
+                        || fileSystem.getPath(original).getFileName().toString().equals(wanted)) {
+                    match = entry;
+                }
+            }
+            if (match == null) {
+                output.append("restore: ").append(wanted).append(": not in the trash\n");
+                continue;
+            }
+            entries.remove(match);
+            output.append(restoreEntry(match));
+        }
+        return output.toString();
+    }
+
+    // Name in the trash, original path, deletion date and the trash directory; null if the record is unreadable
+    private String[] readTrashInfo(Path info) {
+        try {
+            String path = null;
+            String date = "";
+            for (String line : Files.readAllLines(info, StandardCharsets.UTF_8)) {
+                if (line.startsWith("Path=")) {
+                    path = line.substring(5);
+                } else if (line.startsWith("DeletionDate=")) {
+                    date = line.substring(13);
+                }
+            }
+            return path == null ? null : new String[]{trashEntryName(info), path, date, info.getParent().getParent().toString()};
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The name under files/ that an info record belongs to
+    private static String trashEntryName(Path info) {
+        String name = info.getFileName().toString();
+        return name.substring(0, name.length() - TRASH_INFO_SUFFIX.length());
+    }
+
+    private Instant deletionTime(String[] entry) {
+        try {
+            return Instant.parse(entry[2]);
+        } catch (RuntimeException e) {
+            // An entry with no readable date is treated as the oldest
+            return Instant.EPOCH;
+        }
+    }
+
+    private String restoreEntry(String[] entry) {
+        Path trashDir = fileSystem.getPath(entry[3]);
+        Path original = fileSystem.getPath(entry[1]);
+        synchronized (trashDirectories) {
+            return fileOperation("restore", entry[0], entry[1], () -> 0, () -> {
+                try {
+                    if (Files.exists(original, LinkOption.NOFOLLOW_LINKS)) {
+                        return "restore: " + original + " already exists\n";
+                    }
+                    if (original.getParent() != null) {
+                        Files.createDirectories(original.getParent());
+                    }
+                    Files.move(trashDir.resolve("files").resolve(entry[0]), original, StandardCopyOption.ATOMIC_MOVE);
+                    Files.deleteIfExists(trashDir.resolve("info").resolve(entry[0] + TRASH_INFO_SUFFIX));
+                    pathChanged(original);
+                    return "Restored " + original + "\n";
+                } catch (NoSuchFileException e) {
+                    return "restore: " + entry[0] + " has already been purged\n";
+                } catch (IOException e) {
+                    return "restore: cannot restore " + original + ": " + e.getMessage() + "\n";
+                }
+            });
+        }
+    }
+
+    private void startTrashPurger() {
+        synchronized (trashDirectories) {
+            if (trashPurger != null) {
+                return;
+            }
+            trashPurger = new Thread(this::purgeTrash, "trash-purger");
+            trashPurger.setDaemon(true);
+            trashPurger.setPriority(Thread.MIN_PRIORITY);
+            trashPurger.start();
+        }
+    }
+
+    // Runs for the rest of the session, removing entries older than the retention period at a bounded rate
+    private void purgeTrash() {
+        long[] nextDeletion = {System.nanoTime()};
+        while (true) {
+            List<Path> trashDirs;
+            long retention;
+            synchronized (trashDirectories) {
+                trashDirs = new ArrayList<>(trashDirectories.values());
+                retention = trashRetentionMillis;
+            }
+            Instant cutoff = Instant.now().minusMillis(retention);
+            for (Path trashDir : trashDirs) {
+                for (Path claimed : claimExpiredEntries(trashDir, cutoff)) {
+                    purgeTree(claimed, nextDeletion);
+                }
+            }
+            synchronized (trashDirectories) {
+                try {
+                    trashDirectories.wait(Math.max(100, Math.min(trashRetentionMillis, TimeUnit.MINUTES.toMillis(1))));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Takes expired entries away from restore by renaming them, and returns them along with entries whose
+    // purge was interrupted earlier
+    private List<Path> claimExpiredEntries(Path trashDir, Instant cutoff) {
+        List<Path> claimed = new ArrayList<>();
+        Path files = trashDir.resolve("files");
+        synchronized (trashDirectories) {
+            try (DirectoryStream<Path> infos = Files.newDirectoryStream(trashDir.resolve("info"), "*" + TRASH_INFO_SUFFIX)) {
+                for (Path info : infos) {
+                    // A record that cannot be read is treated as expired, so its file is purged with it
+                    String[] entry = readTrashInfo(info);
+                    if (entry != null && deletionTime(entry).isAfter(cutoff)) {
+                        continue;
+                    }
+                    String name = trashEntryName(info);
+                    try {
+                        Files.move(files.resolve(name), files.resolve(TRASH_PURGE_PREFIX + name),
+                                StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) {
+                        // Already restored or never moved in; the record alone is dropped
+                    }
+                    Files.deleteIfExists(info);
+                }
+            } catch (IOException e) {
+                // Try again on the next round
+            }
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(files, TRASH_PURGE_PREFIX + "*")) {
+            entries.forEach(claimed::add);
+        } catch (IOException e) {
+            // Nothing to purge this round
+        }
+        return claimed;
+    }
+
+    private void purgeTree(Path root, long[] nextDeletion) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, TRASH_PURGE_RATE);
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void delete(Path path) throws IOException {
+                    long wait = nextDeletion[0] - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    nextDeletion[0] = Math.max(nextDeletion[0], System.nanoTime() - interval) + interval;
+                    Files.deleteIfExists(path);
+                }
+            });
+        } catch (IOException e) {
+            // Left for the next round
+        }
+    }
+
+    private String listDirectory(boolean showHidden, boolean reverseOrder) {
+        StringBuilder output = new StringBuilder();
+        Path dir = resolve("");
+        List<Path> fileList = new ArrayList<>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                fileList.add(entry);
+            }
+        } catch (IOException e) {
+            return "Cannot access directory: " + currentDirectory + "\n";
+        }
+
+        Comparator<Path> byName = Comparator.comparing(file -> file.getFileName().toString());
+        if (reverseOrder) {
+            fileList.sort(byName.reversed());
+        } else {
+            fileList.sort(byName);
+        }
+
+        for (Path file : fileList) {
+            String name = file.getFileName().toString();
+            // Skip hidden files if not showing hidden
+            if (!showHidden && name.startsWith(".")) {
+                continue;
+            }
+
+            // Check if it's a directory
+            if (Files.isDirectory(file)) {
+                output.append(name).append("\n");
+            }
+            // Print .txt files without any tags, just the name
+            else if (!name.contains(".")) {
+                output.append(name).append(".txt\n");
+            }
+            // For all other files, print their names normally
+            else {
+                output.append(name).append("\n");
+            }
+        }
+
+        return output.toString();
+    }
+
+    private String copyFile(String sourceFile, String destinationFile) {
+        Path src = resolve(sourceFile);
+        Path dest = resolve(destinationFile);
+
+        if (!exists(src)) return "Source file not found: " + sourceFile + "\n";
+
+        try (InputStream fis = Files.newInputStream(src); OutputStream fos = Files.newOutputStream(dest)) {
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                fos.write(buffer, 0, bytesRead);
+            }
+            return "File copied from " + sourceFile + " to " + destinationFile + "\n";
+        } catch (IOException e) {
+            return "Error during file copy: " + e.getMessage() + "\n";
+        }
+    }
+
+    private String copyFileToDirectory(String sourceFile, Path destinationDirectory) {
+        Path name = resolve(sourceFile).getFileName();
+        if (name == null) {
+            return "Cannot copy the root directory: " + sourceFile + "\n";
+        }
+        return copyFile(sourceFile, destinationDirectory.resolve(name).toString());
+    }
+
+    // Returns the raw bytes of the file, or null when it does not exist
+    private byte[] readFileContents(String fileName) {
+        return fileOperation("read", fileName, null, () -> sizeOf(fileName), () -> {
+            Path file = resolve(fileName);
+            if (!exists(file)) {
+                return null;
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+            Lock stripe = null;
+            try {
+                stripe = lockStripe(file, true, deadline);
+                // A shared lock keeps out writers in other processes, so an append is never read half done
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    FileLock lock = lockChannel(channel, true, deadline, file);
+                    try {
+                        return readFully(channel);
+                    } finally {
+                        release(lock);
+                    }
+                }
+            } catch (IOException e) {
+                return ("Error reading file: " + e.getMessage() + "\n").getBytes();
+            } finally {
+                if (stripe != null) {
+                    stripe.unlock();
+                }
+            }
+        });
+    }
+
+    private void readFromUserInput() {
+        System.out.println("Enter text (type 'exit' to finish input):");
+        StringBuilder input = new StringBuilder();
+        Scanner userScanner = new Scanner(System.in);
+
+        String line;
+        while (true) {
+            line = userScanner.nextLine();
+            if (line.equalsIgnoreCase("exit") ) {
+                break;
+            }
+            input.append(line).append(System.lineSeparator());
+        }
+
+        System.out.println("You entered:");
+        System.out.println(input.toString());
+    }
+    private String appendToFile(String fileName, String content) {
+        return appendToFile(fileName, content.getBytes());
+    }
+
+    private String appendToFile(String fileName, byte[] content) {
+        return fileOperation("append", fileName, null, () -> content.length, () -> {
+            Path file = resolve(fileName);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+            Lock stripe = null;
+            try {
+                stripe = lockStripe(file, false, deadline);
+                while (true) {
+                    AppendHandle handle;
+                    synchronized (appendChannels) {
+                        handle = appendHandle(file);
+                        handle.users++;
+                    }
+                    try {
+                        FileLock lock = lockChannel(handle.channel, false, deadline, file);
+                        try {
+                            if (!Objects.equals(handle.fileKey, currentFileKey(handle.path))) {
+                                // Replaced by another process while we waited for the lock; append to the new file
+                                synchronized (appendChannels) {
+                                    appendChannels.remove(handle.path, handle);
+                                    handle.retire();
+                                }
+                                continue;
+                            }
+                            writeFully(handle.channel, content);
+                            if (syncWrites) {
+                                handle.channel.force(false);
+                            }
+                        } finally {
+                            release(lock);
+                        }
+                    } finally {
+                        synchronized (appendChannels) {
+                            handle.release();
+                        }
+                    }
+                    return "Content appended to " + fileName + "\n";
+                }
+            } catch (IOException e) {
+                releaseAppendChannels(file);
+                return "Failed to append to file: " + e.getMessage() + "\n";
+            } finally {
+                if (stripe != null) {
+                    stripe.unlock();
+                }
+            }
+        });
+    }
+
+    // Returns a cached APPEND channel for the file, reopening it if the file was replaced or deleted meanwhile
+    private AppendHandle appendHandle(Path file) throws IOException {
+        Path key = canonical(file);
+        AppendHandle handle = appendChannels.get(key);
+        if (handle != null && !Objects.equals(handle.fileKey, currentFileKey(key))) {
+            appendChannels.remove(key);
+            handle.retire();
+            handle = null;
+        }
+        if (handle == null) {
+            FileChannel channel = FileChannel.open(key,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            handle = new AppendHandle(key, channel, currentFileKey(key));
+            appendChannels.put(key, handle);
+            pathChanged(file);
+            scheduleAppendSweep();
+        }
+        handle.lastUsed = System.currentTimeMillis();
+        return handle;
+    }
+
+    private Object currentFileKey(Path path) {
+        try {
+            Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            // Without file keys the best we can tell is whether the file still exists
+            return fileKey != null ? fileKey : Boolean.TRUE;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Takes the in-process lock for the file, shared for readers, waiting at most until the deadline
+    private Lock lockStripe(Path file, boolean shared, long deadline) throws IOException {
+        Path key;
+        try {
+            key = canonical(file);
+        } catch (IOException e) {
+            key = file.toAbsolutePath().normalize();
+        }
+        int hash = key.hashCode();
+        ReentrantReadWriteLock lock = LOCK_TABLE[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+        Lock stripe = shared ? lock.readLock() : lock.writeLock();
+        LOCK_ACQUISITIONS.increment();
+        if (stripe.tryLock()) {
+            return stripe;
+        }
+        STRIPE_WAITS.increment();
+        long start = System.nanoTime();
+        try {
+            if (!stripe.tryLock(deadline - start, TimeUnit.NANOSECONDS)) {
+                LOCK_TIMEOUTS.increment();
+                throw new IOException("timed out waiting for another writer of " + file.getFileName());
+            }
+            return stripe;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the lock on " + file.getFileName());
+        } finally {
+            LOCK_WAIT_NANOS.add(System.nanoTime() - start);
+        }
+    }
+
+    // Locks the whole file through the channel, polling until the deadline since FileChannel.lock cannot
+    // time out. Returns null where the file system has no locks.
+    private FileLock lockChannel(FileChannel channel, boolean shared, long deadline, Path file) throws IOException {
+        long start = 0;
+        long pause = 1;
+        while (true) {
+            FileLock lock;
+            try {
+                lock = channel.tryLock(0, Long.MAX_VALUE, shared);
+            } catch (OverlappingFileLockException e) {
+                // Held through another channel in this JVM, e.g. under another name for the same file
+                lock = null;
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+            if (lock != null) {
+                if (start != 0) {
+                    LOCK_WAIT_NANOS.add(System.nanoTime() - start);
+                }
+                return lock;
+            }
+            long now = System.nanoTime();
+            if (start == 0) {
+                start = now;
+                FILE_LOCK_WAITS.increment();
+            }
+            if (now >= deadline) {
+                LOCK_WAIT_NANOS.add(now - start);
+                LOCK_TIMEOUTS.increment();
+                throw new IOException("timed out waiting for the lock on " + file.getFileName());
+            }
+            try {
+                Thread.sleep(Math.min(pause, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now))));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the lock on " + file.getFileName());
+            }
+            pause = Math.min(pause * 2, 50);
+        }
+    }
+
+    private static void release(FileLock lock) throws IOException {
+        if (lock != null && lock.isValid()) {
+            lock.release();
+        }
+    }
+
+    private String lockStatistics() {
+        return String.format("Lock acquisitions:          %d\n"
+                        + "Waited for this process:    %d\n"
+                        + "Waited for other processes: %d\n"
+                        + "Timed out:                  %d\n"
+                        + "Total wait:                 %d ms\n"
+                        + "Stripes:                    %d\n"
+                        + "Timeout:                    %d ms\n",
+                LOCK_ACQUISITIONS.sum(), STRIPE_WAITS.sum(), FILE_LOCK_WAITS.sum(), LOCK_TIMEOUTS.sum(),
+                TimeUnit.NANOSECONDS.toMillis(LOCK_WAIT_NANOS.sum()), LOCK_STRIPES, lockTimeoutMillis);
+    }
+
+    private void scheduleAppendSweep() {
+        if (appendSweeper != null) {
+            return;
+        }
+        appendSweeper = new Timer("append-sweeper", true);
+        appendSweeper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                closeIdleAppendChannels();
+            }
+        }, APPEND_IDLE_MILLIS, APPEND_IDLE_MILLIS);
+    }
+
+    private void closeIdleAppendChannels() {
+        long cutoff = System.currentTimeMillis() - APPEND_IDLE_MILLIS;
+        synchronized (appendChannels) {
+            Iterator<AppendHandle> it = appendChannels.values().iterator();
+            while (it.hasNext()) {
+                AppendHandle handle = it.next();
+                if (handle.lastUsed < cutoff) {
+                    handle.retire();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Closes cached channels for the file, or for everything below it when it is a directory
+    private void releaseAppendChannels(Path file) {
+        synchronized (appendChannels) {
+            if (appendChannels.isEmpty()) {
+                return;
+            }
+            Path prefix;
+            try {
+                prefix = canonical(file);
+            } catch (IOException e) {
+                closeAppendChannels();
+                return;
+            }
+            Iterator<Map.Entry<Path, AppendHandle>> it = appendChannels.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Path, AppendHandle> entry = it.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    entry.getValue().retire();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Real path of the file, or of its parent directory when the file does not exist yet
+    private Path canonical(Path file) throws IOException {
+        try {
+            return file.toRealPath();
+        } catch (NoSuchFileException e) {
+            Path parent = file.toAbsolutePath().getParent();
+            return parent == null ? file.toAbsolutePath() : parent.toRealPath().resolve(file.getFileName());
+        }
+    }
+
+    private void closeAppendChannels() {
+        synchronized (appendChannels) {
+            for (AppendHandle handle : appendChannels.values()) {
+                handle.retire();
+            }
+            appendChannels.clear();
+            if (appendSweeper != null) {
+                appendSweeper.cancel();
+                appendSweeper = null;
+            }
+        }
+    }
+
+    private String moveFile(String sourcePath, String destinationPath) {
+        Path src = resolve(sourcePath);
+        Path dest = resolve(destinationPath);
+        releaseAppendChannels(src);
+        releaseAppendChannels(dest);
+
+        if (!exists(src)) {
+            return "Source does not exist: " + sourcePath + "\n";
+        }
+        if (src.getFileName() == null) {
+            return "Cannot move the root directory: " + sourcePath + "\n";
+        }
+
+        // If destination is a directory, move into it
+        if (isDirectory(dest)) {
+            dest = dest.resolve(src.getFileName());
+        }
+
+        try {
+            // Create parent directories if they don't exist
+            if (dest.getParent() != null) {
+                Files.createDirectories(dest.getParent());
+            }
+            try {
+                Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                // If simple rename fails, try copy and delete
+                if (Files.isDirectory(src)) {
+                    copyDirectory(src, dest);
+                } else {
+                    copyFile(sourcePath, destinationPath);
+                }
+                deleteRecursive(src);
+            }
+            pathChanged(src);
+            pathChanged(dest);
+            return "Successfully moved " + sourcePath + " to " + destinationPath + "\n";
+        } catch (IOException e) {
+            return "Failed to move: " + e.getMessage() + "\n";
+        }
+    }
+
+    private void copyDirectory(Path src, Path dest) throws IOException {
+        if (dest.toAbsolutePath().normalize().startsWith(src.toAbsolutePath().normalize())) {
+            // The copy would show up in its own source and never finish
+            throw new IOException("cannot copy " + src + " into itself");
+        }
+        if (!Files.exists(dest)) {
+            Files.createDirectory(dest);
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(src)) {
+            for (Path file : entries) {
+                if (cancelRequested()) {
+                    return;
+                }
+                Path newDest = dest.resolve(file.getFileName().toString());
+                if (Files.isDirectory(file)) {
+                    copyDirectory(file, newDest);
+                } else {
+                    copyFile(file.toString(), newDest.toString());
+                    recordProgress(Files.size(newDest), 1);
+                }
+            }
+        }
+    }
+
+    private String createFile(String filename) {
+        return fileOperation("touch", filename, null, () -> 0, () -> {
+            Path file = resolve(filename);
+            try {
+                Files.createFile(file);
+                pathChanged(file);
+                return "File created: " + filename + "\n";
+            } catch (FileAlreadyExistsException e) {
+                return "File already exists: " + filename + "\n";
+            } catch (IOException e) {
+                return "Failed to create file: " + filename + "\n";
+            }
+        });
+    }
+
+    private void changeDirectory(String path) {
+        // resolve() has already applied "." and "..", so the current directory stays normalized
+        Path newDir = resolve(path);
+        if (isDirectory(newDir)) {
+            currentDirectory = newDir.toString();
+        }
+        else {
+            System.out.println("Directory not found: " + path);
+        }
+    }
+
+
+    // Runs one file system operation as a FileOperation event; a disabled event costs next to nothing.
+    // The size is only looked up when the event or the trace can use it, and before the action runs,
+    // since mv takes the source away.
+    private <T> T fileOperation(String operation, String path, String target, LongSupplier bytes, Supplier<T> action) {
+        FileOperationEvent event = new FileOperationEvent();
+        long size = event.isEnabled() || traceLog != null ? bytes.getAsLong() : 0;
+        long started = System.nanoTime();
+        T value = null;
+        Throwable failure = null;
+        event.begin();
+        try {
+            value = action.get();
+            return value;
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit() || traceLog != null) {
+                String result = failure != null ? failure.toString() : value == null ? "not found"
+                        : value instanceof String ? ((String) value).split("\n", 2)[0] : "ok";
+                event.operation = operation;
+                event.path = path;
+                event.target = target;
+                event.bytes = size;
+                event.result = result;
+                event.commit();
+                trace("file", started, "operation", operation, "path", path, "target", target, "bytes", size,
+                        "result", result);
+            }
+        }
+    }
+
+    private long sizeOf(String fileName) {
+        BasicFileAttributes attributes = stat(resolve(fileName));
+        return attributes != null && attributes.isRegularFile() ? attributes.size() : 0;
+    }
+
+    // Writes one JSON line; the values alternate with their names, and null values are left out
+    private void trace(String event, long started, Object... fields) {
+        Writer log = traceLog;
+        if (log == null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("{\"event\":\"").append(event).append("\",\"time\":\"")
+                .append(Instant.now()).append("\",\"durationMicros\":")
+                .append((System.nanoTime() - started) / 1000);
+        for (int i = 0; i < fields.length; i += 2) {
+            Object value = fields[i + 1];
+            if (value == null) {
+                continue;
+            }
+            line.append(",\"").append(fields[i]).append("\":");
+            if (value instanceof Number) {
+                line.append(value);
+            } else {
+                appendJsonString(line, value.toString());
+            }
+        }
+        line.append("}\n");
+        synchronized (this) {
+            try {
+                log.write(line.toString());
+            } catch (IOException e) {
+                // A trace that cannot be written must not break the command being traced
+            }
+        }
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private synchronized void flushTrace() {
+        if (traceLog != null) {
+            try {
+                traceLog.flush();
+            } catch (IOException e) {
+                // Retried after the next pipeline
+            }
+        }
+    }
+
+    private synchronized void closeTrace() {
+        if (traceLog != null) {
+            try {
+                traceLog.close();
+            } catch (IOException ignored) {
+                // Exiting anyway
+            }
+            traceLog = null;
+        }
+    }
+
+    @Name("cli.Pipeline")
+    @Label("Pipeline")
+    @Category("Command Line")
+    @Description("A command line, from parsing to the last stage's output")
+    static class PipelineEvent extends Event {
+        @Label("Line")
+        String line;
+        @Label("Stages")
+        int stages;
+        @Label("Output")
+        @DataAmount
+        long outputBytes;
+    }
+
+    @Name("cli.Stage")
+    @Label("Stage")
+    @Category("Command Line")
+    @Description("One command of a pipeline")
+    static class StageEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Arguments")
+        String arguments;
+        @Label("Input")
+        @DataAmount
+        long inputBytes;
+        @Label("Output")
+        @DataAmount
+        long outputBytes;
+        @Label("Result")
+        String result;
+    }
+
+    @Name("cli.FileOperation")
+    @Label("File Operation")
+    @Category("Command Line")
+    @Description("A file or directory created, read, written, copied, moved or removed by a command")
+    static class FileOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Path")
+        String path;
+        @Label("Target")
+        String target;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Result")
+        String result;
+    }
+
+    // Ctrl-C cancels a running cp, mv or rm -r; at the prompt it still ends the shell
+    // sun.misc.Signal is looked up reflectively, so the shell builds without internal API warnings and
+    // still starts on a JVM that does not ship it
+    private void handleInterrupts() {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object handler = Proxy.newProxyInstance(Command_Line.class.getClassLoader(), new Class<?>[]{handlerClass},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "handle":
+                                onInterrupt();
+                                return null;
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return "SIGINT handler";
+                        }
+                    });
+            Object signal = signalClass.getConstructor(String.class).newInstance("INT");
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+        } catch (InvocationTargetException e) {
+            // No SIGINT on this platform, or the JVM keeps it for itself; Ctrl-C ends the shell as before
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // No sun.misc.Signal on this JVM; Ctrl-C ends the shell as before
+        }
+    }
+
+    private void onInterrupt() {
+        Progress current = progress;
+        if (current != null) {
+            current.cancelled = true;
+        } else {
+            closeAppendChannels();
+            history.close();
+            closeTrace();
+            System.exit(130);
+        }
+    }
+
+    // Starts tracking an operation on the named arguments cmdParts[from..to); totals are known up front
+    // for files, so the progress line can show an ETA. An operation started by another one, as under
+    // xargs, adds to the outer operation's progress instead.
+    private void beginProgress(String operation, String[] cmdParts, int from, int to) {
+        synchronized (this) {
+            if (progress != null) {
+                progress.nested++;
+                return;
+            }
+        }
+        long totalBytes = 0;
+        int totalFiles = 0;
+        for (int i = from; i < to; i++) {
+            BasicFileAttributes attributes = stat(resolve(cmdParts[i]));
+            if (attributes != null && attributes.isRegularFile()) {
+                totalBytes += attributes.size();
+                totalFiles++;
+            }
+        }
+        Progress started = new Progress(operation, totalBytes, to > from && to - from == totalFiles ? totalFiles : -1);
+        synchronized (this) {
+            progress = started;
+        }
+    }
+
+    private boolean cancelRequested() {
+        Progress current = progress;
+        return current != null && (current.cancelled || Thread.currentThread().isInterrupted());
+    }
+
+    // Counts work done and redraws the progress line, at most every PROGRESS_INTERVAL_MILLIS and
+    // only once the operation has run long enough to be worth watching
+    private void recordProgress(long bytes, int files) {
+        Progress current = progress;
+        if (current == null) {
+            return;
+        }
+        synchronized (current) {
+            current.bytes += bytes;
+            current.files += files;
+            long now = System.currentTimeMillis();
+            if (System.console() != null && now - current.started >= PROGRESS_DELAY_MILLIS
+                    && now - current.renderedAt >= PROGRESS_INTERVAL_MILLIS) {
+                current.renderedAt = now;
+                String line = current.describe(now);
+                // Padded to cover whatever is left of a longer previous line
+                System.out.print(String.format("\r%-" + Math.max(line.length(), current.rendered) + "s", line));
+                System.out.flush();
+                current.rendered = Math.max(line.length(), current.rendered);
+            }
+        }
+    }
+
+    // Clears the progress line and, if the operation was cancelled, says how far it got
+    private String endProgress() {
+        Progress current;
+        synchronized (this) {
+            current = progress;
+            if (current != null && current.nested > 0) {
+                current.nested--;
+                return "";
+            }
+            progress = null;
+        }
+        if (current == null) {
+            return "";
+        }
+        if (current.rendered > 0) {
+            System.out.print(String.format("\r%" + current.rendered + "s\r", ""));
+            System.out.flush();
+        }
+        // Clears an interrupt that cancelled the operation, so it does not carry over to the next command
+        boolean interrupted = Thread.interrupted();
+        if (!current.cancelled && !interrupted) {
+            return "";
+        }
+        return "Cancelled " + current.operation + " after " + current.files + " files ("
+                + Progress.formatBytes(current.bytes) + ")\n";
+    }
+
+    private static class Progress {
+        final String operation;
+        final long totalBytes;
+        // -1 when the operation includes directories, whose contents are not counted up front
+        final int totalFiles;
+        final long started = System.currentTimeMillis();
+        volatile boolean cancelled;
+        // Operations running inside this one; guarded by the Command_Line
+        int nested;
+        long bytes;
+        int files;
+        long renderedAt;
+        int rendered;
+
+        Progress(String operation, long totalBytes, int totalFiles) {
+            this.operation = operation;
+            this.totalBytes = totalBytes;
+            this.totalFiles = totalFiles;
+        }
+
+        String describe(long now) {
+            double seconds = Math.max(1, now - started) / 1000.0;
+            StringBuilder line = new StringBuilder(operation).append(": ").append(files);
+            if (totalFiles >= 0) {
+                line.append("/").append(totalFiles);
+            }
+            line.append(" files");
+            if (bytes > 0) {
+                double rate = bytes / seconds;
+                line.append(", ").append(formatBytes(bytes));
+                if (totalFiles >= 0 && totalBytes > 0) {
+                    line.append(" of ").append(formatBytes(totalBytes));
+                }
+                line.append(", ").append(formatBytes((long) rate)).append("/s");
+                if (totalFiles >= 0 && totalBytes > bytes && rate > 0) {
+                    line.append(", ETA ").append((long) Math.ceil((totalBytes - bytes) / rate)).append("s");
+                }
+            } else {
+                line.append(", ").append((long) (files / seconds)).append(" files/s");
+            }
+            return line.append(" (Ctrl-C to cancel)").toString();
+        }
+
+        static String formatBytes(long bytes) {
+            if (bytes < 1024) {
+                return bytes + " B";
+            }
+            int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+            return String.format("%.1f %siB", bytes / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
+        }
+    }
+
+    private String copyFileOrToDirectory(String sourcePath, String destPath) {
+        return copyFileOrToDirectory(sourcePath, destPath, false);
+    }
+
+    private String copyFileOrToDirectory(String sourcePath, String destPath, boolean verify) {
+        return fileOperation("cp", sourcePath, destPath, () -> sizeOf(sourcePath), () -> {
+            Path sourceFile = resolve(sourcePath);
+            Path destFile = resolve(destPath);
+            releaseAppendChannels(destFile);
+
+            if (!exists(sourceFile)) {
+                return "Source file does not exist: " + sourcePath + "\n";
+            }
+            if (sourceFile.getFileName() == null) {
+                return "Cannot copy the root directory: " + sourcePath + "\n";
+            }
+
+            try {
+                if (isDirectory(destFile)) {
+                    // If destination is a directory, create a new file inside it with the source file's name
+                    destFile = destFile.resolve(sourceFile.getFileName());
+                }
+
+                // Ensure parent directories exist
+                if (destFile.getParent() != null) {
+                    Files.createDirectories(destFile.getParent());
+                }
+
+                // With --verify the source is hashed as it is copied, so it is only read once
+                Checksum sourceChecksum = verify ? Checksum.of("SHA-256") : null;
+                // Copy into a sibling temp file and rename it over the target, so a cancelled or failed
+                // copy leaves the old contents in place
+                Path temp = destFile.resolveSibling("." + destFile.getFileName() + "." + System.nanoTime() + ".tmp");
+                try {
+                    boolean cancelled = false;
+                    try (InputStream fis = Files.newInputStream(sourceFile);
+                         OutputStream fos = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+
+                        byte[] buffer = new byte[8192];
+                        int length;
+                        while ((length = fis.read(buffer)) > 0) {
+                            if (cancelRequested()) {
+                                cancelled = true;
+                                break;
+                            }
+                            fos.write(buffer, 0, length);
+                            if (sourceChecksum != null) {
+                                sourceChecksum.update(ByteBuffer.wrap(buffer, 0, length));
+                            }
+                            recordProgress(length, 0);
+                        }
+                    }
+                    if (cancelled) {
+                        return "Cancelled copy of " + sourcePath + "; " + destPath + " was not changed\n";
+                    }
+                    copyPermissions(destFile, temp);
+                    try {
+                        Files.move(temp, destFile, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temp, destFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+                recordProgress(0, 1);
+                pathChanged(destFile);
+                String result = "Successfully copied " + sourcePath + " to " + destPath + "\n";
+                if (verify) {
+                    String expected = sourceChecksum.hex();
+                    if (!expected.equals(checksum(destFile, "SHA-256"))) {
+                        return result + "Verification failed: " + destPath + " does not match " + sourcePath + "\n";
+                    }
+                    result += "Verified " + destPath + " (sha256 " + expected + ")\n";
+                }
+                return result;
+            } catch (IOException e) {
+                return "Failed to copy file: " + e.getMessage() + "\n";
+            }
+        });
+    }
+
+    private String checksumCommand(String[] cmdParts) {
+        String command = cmdParts[0].toLowerCase();
+        String algorithm = CHECKSUM_ALGORITHMS.get(command);
+        if (cmdParts.length < 2 || (cmdParts[1].equals("-c") && cmdParts.length < 3)) {
+            return "Usage: " + command + " [-c <checksum_file>] <file_name> [<file_name2> ...]\n";
+        }
+        if (cmdParts[1].equals("-c")) {
+            StringBuilder output = new StringBuilder();
+            for (int i = 2; i < cmdParts.length; i++) {
+                output.append(verifyChecksums(command, algorithm, cmdParts[i]));
+            }
+            return output.toString();
+        }
+
+        // Files are hashed in parallel; the output keeps the order they were given in
+        List<String> fileNames = Arrays.asList(cmdParts).subList(1, cmdParts.length);
+        return fileNames.parallelStream()
+                .map(fileName -> {
+                    try {
+                        return checksum(resolve(fileName), algorithm) + "  " + fileName + "\n";
+                    } catch (NoSuchFileException e) {
+                        return command + ": " + fileName + ": No such file or directory\n";
+                    } catch (IOException e) {
+                        return command + ": " + fileName + ": " + e.getMessage() + "\n";
+                    }
+                })
+                .collect(Collectors.joining());
+    }
+
+    // Checks every "<checksum>  <file_name>" line of the list file
+    private String verifyChecksums(String command, String algorithm, String listName) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(resolve(listName));
+        } catch (IOException e) {
+            return command + ": " + listName + ": No such file or directory\n";
+        }
+
+        List<String> results = lines.parallelStream()
+                .filter(line -> !line.trim().isEmpty())
+                .map(line -> {
+                    String[] parts = line.trim().split("\\s+\\*?", 2);
+                    if (parts.length < 2) {
+                        return "improperly formatted line: " + line + "\n";
+                    }
+                    try {
+                        boolean matches = checksum(resolve(parts[1]), algorithm).equalsIgnoreCase(parts[0]);
+                        return parts[1] + (matches ? ": OK\n" : ": FAILED\n");
+                    } catch (IOException e) {
+                        return parts[1] + ": FAILED open or read\n";
+                    }
+                })
+                .collect(Collectors.toList());
+
+        StringBuilder output = new StringBuilder();
+        int failed = 0;
+        for (String result : results) {
+            output.append(result);
+            if (!result.endsWith(": OK\n")) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            output.append(command).append(": WARNING: ").append(failed).append(" of ").append(results.size())
+                    .append(" computed checksums did NOT match\n");
+        }
+        return output.toString();
+    }
+
+    private String checksum(Path file, String algorithm) throws IOException {
+        Checksum checksum = Checksum.of(algorithm);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+        // Like readFileContents, hold off writers so an append in progress is not hashed half done
+        Lock stripe = lockStripe(file, true, deadline);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileLock lock = lockChannel(channel, true, deadline, file);
+            try {
+                long size = channel.size();
+                boolean mapped = false;
+                if (size >= MAP_THRESHOLD) {
+                    try {
+                        for (long position = 0; position < size; position += MAP_CHUNK) {
+                            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                    Math.min(MAP_CHUNK, size - position));
+                            checksum.update(chunk);
+                        }
+                        mapped = true;
+                    } catch (UnsupportedOperationException e) {
+                        // The file system cannot map files; read them instead
+                    }
+                }
+                if (!mapped) {
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    while (channel.read(buffer) > 0) {
+                        buffer.flip();
+                        checksum.update(buffer);
+                        buffer.clear();
+                    }
+                }
+            } finally {
+                release(lock);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        return checksum.hex();
+    }
+
+    private String compareFiles(String[] cmdParts) {
+        if (cmdParts.length != 3) {
+            return "Usage: cmp <file1> <file2>\n";
+        }
+        Path first = resolve(cmdParts[1]);
+        Path second = resolve(cmdParts[2]);
+        for (int i = 1; i <= 2; i++) {
+            Path file = i == 1 ? first : second;
+            if (!exists(file)) {
+                return "cmp: " + cmdParts[i] + ": No such file or directory\n";
+            }
+            if (isDirectory(file)) {
+                return "cmp: " + cmdParts[i] + ": Is a directory\n";
+            }
+        }
+        try (FileChannel a = FileChannel.open(first, StandardOpenOption.READ);
+             FileChannel b = FileChannel.open(second, StandardOpenOption.READ)) {
+            long sizeA = a.size();
+            long sizeB = b.size();
+            long common = Math.min(sizeA, sizeB);
+            long difference = firstDifference(a, b, common);
+            if (difference >= 0) {
+                return cmdParts[1] + " " + cmdParts[2] + " differ: byte " + (difference + 1) + ", line "
+                        + (newlinesBefore(a, difference) + 1) + "\n";
+            }
+            if (sizeA != sizeB) {
+                return "cmp: EOF on " + (sizeA < sizeB ? cmdParts[1] : cmdParts[2]) + " after byte " + common + "\n";
+            }
+            return "";
+        } catch (IOException e) {
+            return "cmp: " + e.getMessage() + "\n";
+        }
+    }
+
+    // Offset of the first byte that differs within the first length bytes of both files, or -1
+    private long firstDifference(FileChannel a, FileChannel b, long length) throws IOException {
+        if (length >= MAP_THRESHOLD) {
+            try {
+                AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+                LongStream.range(0, (length + CMP_CHUNK - 1) / CMP_CHUNK).parallel().forEach(chunk -> {
+                    long start = chunk * CMP_CHUNK;
+                    if (start >= first.get()) {
+                        return;
+                    }
+                    long size = Math.min(CMP_CHUNK, length - start);
+                    try {
+                        int mismatch = a.map(FileChannel.MapMode.READ_ONLY, start, size)
+                                .mismatch(b.map(FileChannel.MapMode.READ_ONLY, start, size));
+                        if (mismatch >= 0) {
+                            first.accumulateAndGet(start + mismatch, Math::min);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return first.get() == Long.MAX_VALUE ? -1 : first.get();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (UnsupportedOperationException e) {
+                // The file system cannot map files; read them instead
+            }
+        }
+        ByteBuffer bufferA = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer bufferB = ByteBuffer.allocate(64 * 1024);
+        for (long position = 0; position < length; position += bufferA.capacity()) {
+            int size = (int) Math.min(bufferA.capacity(), length - position);
+            readAt(a, bufferA, position, size);
+            readAt(b, bufferB, position, size);
+            int mismatch = bufferA.mismatch(bufferB);
+            if (mismatch >= 0) {
+                return position + mismatch;
+            }
+        }
+        return -1;
+    }
+
+    // Fills the buffer with up to size bytes from position, stopping early only at the end of the file
+    private void readAt(FileChannel channel, ByteBuffer buffer, long position, int size) throws IOException {
+        buffer.clear().limit(size);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            // Keep reading until the buffer is full
+        }
+        buffer.flip();
+    }
+
+    private long newlinesBefore(FileChannel channel, long end) throws IOException {
+        long newlines = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (long position = 0; position < end; position += buffer.capacity()) {
+            readAt(channel, buffer, position, (int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (buffer.get() == '\n') {
+                    newlines++;
+                }
+            }
+        }
+        return newlines;
+    }
+
+    private String diff(String[] cmdParts) {
+        boolean recursive = cmdParts.length > 1 && cmdParts[1].equals("-r");
+        if (cmdParts.length != (recursive ? 4 : 3)) {
+            return "Usage: diff [-r] <file1> <file2>\n";
+        }
+        String nameA = cmdParts[cmdParts.length - 2];
+        String nameB = cmdParts[cmdParts.length - 1];
+        Path a = resolve(nameA);
+        Path b = resolve(nameB);
+        if (!exists(a) || !exists(b)) {
+            return "diff: " + (exists(a) ? nameB : nameA) + ": No such file or directory\n";
+        }
+        if (isDirectory(a) && isDirectory(b)) {
+            return recursive ? diffTrees(nameA, a, nameB, b)
+                    : "diff: " + nameA + " and " + nameB + " are directories; use diff -r\n";
+        }
+        if (isDirectory(a) != isDirectory(b)) {
+            return fileTypeMismatch(nameA, isDirectory(a), nameB);
+        }
+        return diffFiles(nameA, a, nameB, b);
+    }
+
+    private String fileTypeMismatch(String nameA, boolean directoryA, String nameB) {
+        return "File " + nameA + " is a " + (directoryA ? "directory" : "regular file") + " while file " + nameB
+                + " is a " + (directoryA ? "regular file" : "directory") + "\n";
+    }
+
+    // Both trees are walked at once, then every name in either is compared on the common pool
+    private String diffTrees(String labelA, Path rootA, String labelB, Path rootB) {
+        Map<String, BasicFileAttributes> treeA;
+        Map<String, BasicFileAttributes> treeB;
+        try {
+            CompletableFuture<Map<String, BasicFileAttributes>> walkB = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return walkTree(rootB);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            treeA = walkTree(rootA);
+            treeB = walkB.join();
+        } catch (IOException | CompletionException e) {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            return "diff: " + cause.getMessage() + "\n";
+        }
+
+        TreeSet<String> names = new TreeSet<>(treeA.keySet());
+        names.addAll(treeB.keySet());
+        return names.parallelStream()
+                .map(name -> {
+                    BasicFileAttributes entryA = treeA.get(name);
+                    BasicFileAttributes entryB = treeB.get(name);
+                    String pathA = labelA + "/" + name;
+                    String pathB = labelB + "/" + name;
+                    if (entryA == null || entryB == null) {
+                        // Only the topmost entry missing from one side is reported, not everything under it
+                        int slash = name.lastIndexOf('/');
+                        String parent = slash < 0 ? "" : name.substring(0, slash);
+                        if (!parent.isEmpty() && (!treeA.containsKey(parent) || !treeB.containsKey(parent))) {
+                            return "";
+                        }
+                        return "Only in " + (entryA != null ? labelA : labelB) + (parent.isEmpty() ? "" : "/" + parent)
+                                + ": " + name.substring(slash + 1) + "\n";
+                    }
+                    if (entryA.isDirectory() || entryB.isDirectory()) {
+                        return entryA.isDirectory() == entryB.isDirectory() ? ""
+                                : fileTypeMismatch(pathA, entryA.isDirectory(), pathB);
+                    }
+                    String difference = diffFiles(pathA, rootA.resolve(name), pathB, rootB.resolve(name));
+                    return difference.isEmpty() ? "" : "diff -r " + pathA + " " + pathB + "\n" + difference;
+                })
+                .collect(Collectors.joining());
+    }
+
+    private String diffFiles(String labelA, Path a, String labelB, Path b) {
+        try (FileChannel channelA = FileChannel.open(a, StandardOpenOption.READ);
+             FileChannel channelB = FileChannel.open(b, StandardOpenOption.READ)) {
+            // Matching files, the usual case after a copy, are settled by the chunked compare without parsing lines
+            if (channelA.size() == channelB.size() && firstDifference(channelA, channelB, channelA.size()) < 0) {
+                return "";
+            }
+            LineNumbers numbers = new LineNumbers();
+            int[] linesA = numberLines(channelA, numbers);
+            int[] linesB = linesA != null ? numberLines(channelB, numbers) : null;
+            if (linesA == null || linesB == null) {
+                return "Binary files " + labelA + " and " + labelB + " differ\n";
+            }
+            // The text is read a second time, in order, for the lines the hunks show
+            channelA.position(0);
+            channelB.position(0);
+            return new LineDiff(labelA, linesA, new LineReader(channelA), labelB, linesB, new LineReader(channelB),
+                    numbers.size()).run();
+        } catch (IOException e) {
+            return "diff: " + e.getMessage() + "\n";
+        }
+    }
+
+    // Numbers the lines of a file as they are read, lines with equal hashes getting equal numbers, so only the
+    // numbers are kept rather than the text. Returns null for a binary file, one with a NUL byte in its first 8 KiB.
+    private static int[] numberLines(FileChannel channel, LineNumbers numbers) throws IOException {
+        int[] lines = new int[1024];
+        int count = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        byte[] bytes = buffer.array();
+        long position = 0;
+        long hash = LineNumbers.EMPTY;
+        boolean open = false;
+        int length;
+        while ((length = channel.read(buffer)) >= 0) {
+            for (int i = 0; i < length; i++, position++) {
+                byte value = bytes[i];
+                if (value == 0 && position < 8192) {
+                    return null;
+                }
+                hash = LineNumbers.hash(hash, value);
+                open = true;
+                if (value == '\n') {
+                    if (count == lines.length) {
+                        lines = Arrays.copyOf(lines, count * 2);
+                    }
+                    lines[count++] = numbers.number(hash);
+                    hash = LineNumbers.EMPTY;
+                    open = false;
+                }
+            }
+            buffer.clear();
+        }
+        if (open) {
+            // Last line without a newline; it hashes differently from the same text with one
+            if (count == lines.length) {
+                lines = Arrays.copyOf(lines, count + 1);
+            }
+            lines[count++] = numbers.number(hash);
+        }
+        return Arrays.copyOf(lines, count);
+    }
+
+    // Gives each distinct line a number by a 64-bit FNV-1a hash of its bytes, terminator included, in an
+    // open addressing table of primitives. The bytes are never compared, so two different lines with the same
+    // hash count as equal and the diff would not show that change; even with a few million distinct lines the
+    // chance of any such collision is below one in a million.
+    private static class LineNumbers {
+        static final long EMPTY = 0xcbf29ce484222325L;
+        private static final long PRIME = 0x100000001b3L;
+
+        private long[] hashes = new long[1024];
+        private int[] numbers = filled(1024);
+        private int size;
+
+        static long hash(long hash, byte value) {
+            return (hash ^ (value & 0xff)) * PRIME;
+        }
+
+        int number(long hash) {
+            int slot = find(hashes, numbers, hash);
+            if (numbers[slot] >= 0) {
+                return numbers[slot];
+            }
+            hashes[slot] = hash;
+            numbers[slot] = size;
+            if (++size * 2 > hashes.length) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] oldHashes = hashes;
+            int[] oldNumbers = numbers;
+            hashes = new long[oldHashes.length * 2];
+            numbers = filled(hashes.length);
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldNumbers[i] >= 0) {
+                    int slot = find(hashes, numbers, oldHashes[i]);
+                    hashes[slot] = oldHashes[i];
+                    numbers[slot] = oldNumbers[i];
+                }
+            }
+        }
+
+        // The slot holding the hash, or the empty slot where it belongs
+        private static int find(long[] hashes, int[] numbers, long hash) {
+            int mask = hashes.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (numbers[slot] >= 0 && hashes[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static int[] filled(int length) {
+            int[] empty = new int[length];
+            Arrays.fill(empty, -1);
+            return empty;
+        }
+    }
+
+    // Reads lines back by index, which must not decrease, skipping the lines in between without keeping them
+    private static class LineReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private int next;
+
+        LineReader(FileChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        // The line with its terminator, if it has one; empty if the file got shorter since it was numbered
+        byte[] line(int index) throws IOException {
+            while (next < index) {
+                readLine(null);
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            readLine(line);
+            return line.toByteArray();
+        }
+
+        private void readLine(ByteArrayOutputStream line) throws IOException {
+            next++;
+            while (buffer.hasRemaining() || fill()) {
+                byte[] bytes = buffer.array();
+                int start = buffer.position();
+                int end = start;
+                while (end < buffer.limit() && bytes[end] != '\n') {
+                    end++;
+                }
+                boolean found = end < buffer.limit();
+                if (line != null) {
+                    line.write(bytes, start, end - start + (found ? 1 : 0));
+                }
+                buffer.position(end + (found ? 1 : 0));
+                if (found) {
+                    return;
+                }
+            }
+        }
+
+        private boolean fill() throws IOException {
+            buffer.clear();
+            int length = channel.read(buffer);
+            buffer.flip();
+            return length > 0;
+        }
+    }
+
+    // Unified line diff using Myers' algorithm in linear space: find the middle of an optimal edit path,
+    // then solve both halves. Edits come out in order, so each hunk is written as soon as it is complete,
+    // reading its lines back from the files; only line numbers and the open hunk's line indexes are kept.
+    // Lines are compared by their numbers alone, so lines with equal hashes are equal lines here.
+    private static class LineDiff {
+        private static final int CONTEXT = 3;
+        // Past this many edits in one subproblem, the furthest forward path is used as the split, as GNU diff
+        // does, so a huge change stays fast; the script is then correct but maybe not minimal
+        private static final int MAX_COST = 4096;
+        // Kinds of hunk line
+        private static final int KEPT = 0;
+        private static final int DELETED = 1;
+        private static final int INSERTED = 2;
+
+        private final String labelA;
+        private final String labelB;
+        private final LineReader readerA;
+        private final LineReader readerB;
+        private final int countA;
+        private final int countB;
+        // Lines as numbers, equal lines getting equal numbers. Lines that occur nowhere in the other file are
+        // left out, as GNU diff does: they cannot be part of a common subsequence, and dropping them keeps a
+        // wholesale rewrite from costing a full search. The maps give each remaining line's real index.
+        private final int[] a;
+        private final int[] b;
+        private final int[] lineA;
+        private final int[] lineB;
+        private final StringBuilder output = new StringBuilder();
+
+        // Up to CONTEXT unchanged lines seen since the last hunk closed
+        private final ArrayDeque<int[]> leading = new ArrayDeque<>();
+        // Unchanged lines since the last change of the open hunk
+        private final List<int[]> trailing = new ArrayList<>();
+        private final List<Integer> deleted = new ArrayList<>();
+        private final List<Integer> inserted = new ArrayList<>();
+        // Lines of the open hunk in output order, each a line index shifted left by two over its kind
+        private long[] hunk;
+        private int hunkSize;
+        private int hunkStartA;
+        private int hunkStartB;
+        private int hunkLinesA;
+        private int hunkLinesB;
+        // Next line of each file not yet passed to the hunk builder
+        private int nextA;
+        private int nextB;
+        // Next line of each file not yet given to equal, delete or insert, including left out lines
+        private int cursorA;
+        private int cursorB;
+
+        LineDiff(String labelA, int[] allA, LineReader readerA, String labelB, int[] allB, LineReader readerB,
+                 int distinctLines) {
+            this.labelA = labelA;
+            this.labelB = labelB;
+            this.readerA = readerA;
+            this.readerB = readerB;
+            countA = allA.length;
+            countB = allB.length;
+            boolean[] inA = new boolean[distinctLines];
+            boolean[] inB = new boolean[distinctLines];
+            for (int number : allA) {
+                inA[number] = true;
+            }
+            for (int number : allB) {
+                inB[number] = true;
+            }
+            lineA = IntStream.range(0, allA.length).filter(i -> inB[allA[i]]).toArray();
+            lineB = IntStream.range(0, allB.length).filter(i -> inA[allB[i]]).toArray();
+            a = Arrays.stream(lineA).map(i -> allA[i]).toArray();
+            b = Arrays.stream(lineB).map(i -> allB[i]).toArray();
+        }
+
+        String run() throws IOException {
+            diff(0, a.length, 0, b.length);
+            skipTo(countA, countB);
+            flushChanges();
+            if (hunk != null) {
+                for (int i = 0; i < Math.min(CONTEXT, trailing.size()); i++) {
+                    addLine(KEPT, trailing.get(i)[0]);
+                    hunkLinesA++;
+                    hunkLinesB++;
+                }
+                closeHunk();
+            }
+            return output.toString();
+        }
+
+        private void diff(int aLo, int aHi, int bLo, int bHi) throws IOException {
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                equal(aLo++, bLo++);
+            }
+            int suffix = 0;
+            while (aLo < aHi - suffix && bLo < bHi - suffix && a[aHi - 1 - suffix] == b[bHi - 1 - suffix]) {
+                suffix++;
+            }
+            aHi -= suffix;
+            bHi -= suffix;
+
+            long split = aLo == aHi || bLo == bHi ? -1 : bisect(aLo, aHi, bLo, bHi);
+            int x = (int) (split >>> 32);
+            int y = (int) split;
+            if (split >= 0 && (x > aLo || y > bLo) && (x < aHi || y < bHi)) {
+                diff(aLo, x, bLo, y);
+                diff(x, aHi, y, bHi);
+            } else {
+                for (int i = aLo; i < aHi; i++) {
+                    delete(i);
+                }
+                for (int j = bLo; j < bHi; j++) {
+                    insert(j);
+                }
+            }
+            for (int k = 0; k < suffix; k++) {
+                equal(aHi + k, bHi + k);
+            }
+        }
+
+        // A point (x, y) on an optimal path through the subproblem, packed as x << 32 | y, or -1 if none was found.
+        // Walks forward from the start and backward from the end until the two searches overlap.
+        private long bisect(int aLo, int aHi, int bLo, int bHi) {
+            int n = aHi - aLo;
+            int m = bHi - bLo;
+            int maxD = Math.min((n + m + 1) / 2, MAX_COST);
+            int offset = maxD;
+            int length = 2 * maxD + 2;
+            int[] forward = new int[length];
+            int[] backward = new int[length];
+            Arrays.fill(forward, -1);
+            Arrays.fill(backward, -1);
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+            int delta = n - m;
+            // With an odd delta the paths meet on a forward step, otherwise on a backward one
+            boolean front = (delta & 1) != 0;
+            int forwardStart = 0;
+            int forwardEnd = 0;
+            int backwardStart = 0;
+            int backwardEnd = 0;
+            for (int d = 0; d < maxD; d++) {
+                for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                    int index = offset + k;
+                    int x = k == -d || (k != d && forward[index - 1] < forward[index + 1])
+                            ? forward[index + 1] : forward[index - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                        x++;
+                        y++;
+                    }
+                    forward[index] = x;
+                    if (x > n) {
+                        forwardEnd += 2;
+                    } else if (y > m) {
+                        forwardStart += 2;
+                    } else if (front) {
+                        int other = offset + delta - k;
+                        if (other >= 0 && other < length && backward[other] != -1 && x >= n - backward[other]) {
+                            return (long) (aLo + x) << 32 | (bLo + y);
+                        }
+                    }
+                }
+                for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                    int index = offset + k;
+                    int x = k == -d || (k != d && backward[index - 1] < backward[index + 1])
+                            ? backward[index + 1] : backward[index - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                        x++;
+                        y++;
+                    }
+                    backward[index] = x;
+                    if (x > n) {
+                        backwardEnd += 2;
+                    } else if (y > m) {
+                        backwardStart += 2;
+                    } else if (!front) {
+                        int other = offset + delta - k;
+                        if (other >= 0 && other < length && forward[other] != -1) {
+                            int forwardX = forward[other];
+                            int forwardY = forwardX - (other - offset);
+                            if (forwardX >= n - x) {
+                                return (long) (aLo + forwardX) << 32 | (bLo + forwardY);
+                            }
+                        }
+                    }
+                }
+            }
+            // Too expensive: split where the forward search got furthest
+            long split = -1;
+            int best = 0;
+            for (int k = -maxD; k <= maxD; k++) {
+                int x = forward[offset + k];
+                int y = x - k;
+                if (x >= 0 && x <= n && y >= 0 && y <= m && x + y > best) {
+                    best = x + y;
+                    split = (long) (aLo + x) << 32 | (bLo + y);
+                }
+            }
+            return split;
+        }
+
+        private void equal(int i, int j) throws IOException {
+            skipTo(lineA[i], lineB[j]);
+            cursorA++;
+            cursorB++;
+            unchanged(lineA[i], lineB[j]);
+        }
+
+        private void delete(int i) {
+            skipTo(lineA[i], cursorB);
+            deleted.add(cursorA++);
+        }
+
+        private void insert(int j) {
+            skipTo(cursorA, lineB[j]);
+            inserted.add(cursorB++);
+        }
+
+        // Left out lines before the given ones are always deleted or inserted
+        private void skipTo(int i, int j) {
+            while (cursorA < i) {
+                deleted.add(cursorA++);
+            }
+            while (cursorB < j) {
+                inserted.add(cursorB++);
+            }
+        }
+
+        private void unchanged(int i, int j) throws IOException {
+            flushChanges();
+            nextA = i + 1;
+            nextB = j + 1;
+            if (hunk == null) {
+                leading.addLast(new int[]{i, j});
+                if (leading.size() > CONTEXT) {
+                    leading.removeFirst();
+                }
+                return;
+            }
+            trailing.add(new int[]{i, j});
+            if (trailing.size() > 2 * CONTEXT) {
+                // Too far from the next change to share a hunk with it
+                for (int k = 0; k < CONTEXT; k++) {
+                    addLine(KEPT, trailing.get(k)[0]);
+                }
+                hunkLinesA += CONTEXT;
+                hunkLinesB += CONTEXT;
+                closeHunk();
+                leading.clear();
+                leading.addAll(trailing.subList(trailing.size() - CONTEXT, trailing.size()));
+                trailing.clear();
+            }
+        }
+
+        // Adds the changes since the last unchanged line to the hunk, deletions first as other diffs do
+        private void flushChanges() {
+            if (deleted.isEmpty() && inserted.isEmpty()) {
+                return;
+            }
+            if (hunk == null) {
+                hunk = new long[64];
+                hunkSize = 0;
+                int[] first = leading.peekFirst();
+                hunkStartA = first != null ? first[0] : nextA;
+                hunkStartB = first != null ? first[1] : nextB;
+                hunkLinesA = 0;
+                hunkLinesB = 0;
+                trailing.addAll(leading);
+                leading.clear();
+            }
+            for (int[] line : trailing) {
+                addLine(KEPT, line[0]);
+            }
+            hunkLinesA += trailing.size();
+            hunkLinesB += trailing.size();
+            trailing.clear();
+            for (int i : deleted) {
+                addLine(DELETED, i);
+            }
+            for (int j : inserted) {
+                addLine(INSERTED, j);
+            }
+            hunkLinesA += deleted.size();
+            hunkLinesB += inserted.size();
+            if (!deleted.isEmpty()) {
+                nextA = deleted.get(deleted.size() - 1) + 1;
+            }
+            if (!inserted.isEmpty()) {
+                nextB = inserted.get(inserted.size() - 1) + 1;
+            }
+            deleted.clear();
+            inserted.clear();
+        }
+
+        private void addLine(int kind, int index) {
+            if (hunkSize == hunk.length) {
+                hunk = Arrays.copyOf(hunk, hunkSize * 2);
+            }
+            hunk[hunkSize++] = (long) index << 2 | kind;
+        }
+
+        // Writes the hunk, reading its lines back in file order: kept and deleted lines from the first file,
+        // inserted ones from the second
+        private void closeHunk() throws IOException {
+            if (output.length() == 0) {
+                output.append("--- ").append(labelA).append("\n+++ ").append(labelB).append("\n");
+            }
+            output.append("@@ -").append(range(hunkStartA, hunkLinesA)).append(" +").append(range(hunkStartB, hunkLinesB))
+                    .append(" @@\n");
+            for (int k = 0; k < hunkSize; k++) {
+                int kind = (int) (hunk[k] & 3);
+                int index = (int) (hunk[k] >>> 2);
+                byte[] line = kind == INSERTED ? readerB.line(index) : readerA.line(index);
+                output.append(kind == KEPT ? ' ' : kind == DELETED ? '-' : '+')
+                        .append(new String(line, StandardCharsets.UTF_8));
+                if (line.length == 0 || line[line.length - 1] != '\n') {
+                    output.append("\n\\ No newline at end of file\n");
+                }
+            }
+            hunk = null;
+        }
+
+        // An empty range is given by the line before it, as in other unified diffs
+        private static String range(int start, int count) {
+            if (count == 1) {
+                return String.valueOf(start + 1);
+            }
+            return (count == 0 ? start : start + 1) + "," + count;
+        }
+    }
+
+    // A MessageDigest or a CRC32 behind one interface
+    private static class Checksum {
+        private final MessageDigest digest;
+        private final CRC32 crc;
+
+        private Checksum(MessageDigest digest, CRC32 crc) {
+            this.digest = digest;
+            this.crc = crc;
+        }
+
+        static Checksum of(String algorithm) {
+            if (algorithm.equals("CRC32")) {
+                return new Checksum(null, new CRC32());
+            }
+            try {
+                return new Checksum(MessageDigest.getInstance(algorithm), null);
+            } catch (NoSuchAlgorithmException e) {
+                // SHA-256 and MD5 are required of every Java platform
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(ByteBuffer buffer) {
+            if (digest != null) {
+                digest.update(buffer);
+            } else {
+                crc.update(buffer);
+            }
+        }
+
+        String hex() {
+            if (crc != null) {
+                return String.format("%08x", crc.getValue());
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+
+    private String gzipFiles(String[] cmdParts) {
+        String command = cmdParts[0].toLowerCase();
+        boolean compress = command.equals("gzip");
+        boolean keep = false;
+        boolean force = false;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        List<String> fileNames = new ArrayList<>();
+        for (int i = 1; i < cmdParts.length; i++) {
+            if (cmdParts[i].equals("-k")) {
+                keep = true;
+            } else if (cmdParts[i].equals("-f")) {
+                force = true;
+            } else if (compress && cmdParts[i].matches("-[1-9]")) {
+                level = cmdParts[i].charAt(1) - '0';
+            } else {
+                fileNames.add(cmdParts[i]);
+            }
+        }
+        if (fileNames.isEmpty()) {
+            return compress ? "Usage: gzip [-k] [-f] [-1..-9] <file_name> [<file_name2> ...]\n"
+                    : "Usage: gunzip [-k] [-f] <file_name.gz> [<file_name2.gz> ...]\n";
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (String fileName : fileNames) {
+            if (!compress && !fileName.endsWith(".gz")) {
+                output.append("gunzip: ").append(fileName).append(": unknown suffix -- ignored\n");
+                continue;
+            }
+            if (compress && fileName.endsWith(".gz")) {
+                output.append("gzip: ").append(fileName).append(" already has .gz suffix -- unchanged\n");
+                continue;
+            }
+            Path source = resolve(fileName);
+            if (!exists(source) || isDirectory(source)) {
+                output.append("File not found: ").append(fileName).append("\n");
+                continue;
+            }
+            String targetName = compress ? fileName + ".gz" : fileName.substring(0, fileName.length() - 3);
+            Path target = resolve(targetName);
+            if (!force && exists(target)) {
+                output.append(command).append(": ").append(targetName).append(" already exists; use -f to overwrite\n");
+                continue;
+            }
+            releaseAppendChannels(target);
+            // Write into a sibling temp file and rename it over the target, so a failure never leaves half a file
+            Path temp = target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
+            try {
+                try (InputStream in = Files.newInputStream(source);
+                     OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    if (compress) {
+                        compress(in, Files.size(source), out, level);
+                    } else {
+                        decompress(in, out);
+                    }
+                }
+                copyPermissions(target, temp);
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                output.append(command).append(": ").append(fileName).append(": ").append(e.getMessage()).append("\n");
+                continue;
+            } finally {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Nothing more to clean up
+                }
+            }
+            pathChanged(target);
+            if (!keep) {
+                output.append(removeFile(fileName).startsWith("File removed") ? ""
+                        : command + ": could not remove " + fileName + "\n");
+            }
+            output.append(compress ? "Compressed " : "Decompressed ").append(fileName)
+                    .append(" to ").append(targetName).append("\n");
+        }
         return output.toString();
     }
 
-    private String createDirectory(String dirName) {
-        File dir = new File(currentDirectory, dirName);
-        return dir.mkdir() ? "Directory created: " + dirName + "\n" : "Failed to create directory: " + dirName + "\n";
+    private void decompress(InputStream in, OutputStream out) throws IOException {
+        // GZIPInputStream also reads files made of several concatenated members
+        try (GZIPInputStream gzip = new GZIPInputStream(in, 64 * 1024)) {
+            gzip.transferTo(out);
+        }
     }
 
-    private String removeFile(String fileName) {
-        File file = new File(currentDirectory, fileName);
-        return (file.exists() && file.delete()) ? "File removed: " + fileName + "\n" : "Failed to remove file: " + fileName + "\n";
-    }
+    // Writes the input as a gzip stream; large inputs are compressed in parallel blocks
+    private void compress(InputStream in, long size, OutputStream out, int level) throws IOException {
+        if (size < PARALLEL_GZIP_THRESHOLD) {
+            // Closing finishes the stream and frees the native deflater, but leaves out open for the caller
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024) {
+                {
+                    def.setLevel(level);
+                }
 
-    private String writeToFile(String fileName, String content) {
-        File file = new File(currentDirectory, fileName);
-        try (PrintWriter writer = new PrintWriter(new FileWriter(file, false))) {
-            writer.print(content);
-            return "Content written to " + fileName + "\n";
-        } catch (IOException e) {
-            return "Failed to write to file: " + e.getMessage() + "\n";
+                @Override
+                public void close() throws IOException {
+                    try {
+                        finish();
+                    } finally {
+                        def.end();
+                    }
+                }
+            }) {
+                in.transferTo(gzip);
+            }
+            return;
         }
-    }
 
-    private String removeDirectoryRecursive(String dirPath) {
-        File dir = new File(currentDirectory, dirPath);
-        if (!dir.exists()) {
-            return "Directory not found: " + dirPath + "\n";
+        // Each block is deflated on its own, primed with the 32 KiB of input before it so matches can reach
+        // back across block boundaries. Sync-flushed blocks end on a byte boundary, so they concatenate into
+        // a single deflate stream; only the last block is finished.
+        out.write(new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+        CRC32 crc = new CRC32();
+        long total = 0;
+        int inFlight = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+        Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        byte[] dictionary = new byte[0];
+        byte[] block = in.readNBytes(GZIP_BLOCK_SIZE);
+        while (true) {
+            byte[] next = block.length == GZIP_BLOCK_SIZE ? in.readNBytes(GZIP_BLOCK_SIZE) : new byte[0];
+            boolean last = next.length == 0;
+            crc.update(block);
+            total += block.length;
+
+            byte[] input = block;
+            byte[] primer = dictionary;
+            pending.add(CompletableFuture.supplyAsync(() -> deflateBlock(input, primer, level, last)));
+            if (pending.size() >= inFlight) {
+                out.write(pending.removeFirst().join());
+            }
+            if (last) {
+                break;
+            }
+            dictionary = Arrays.copyOfRange(block, Math.max(0, block.length - GZIP_DICTIONARY_SIZE), block.length);
+            block = next;
         }
-        return deleteRecursive(dir) ? "Removed directory and its contents: " + dirPath + "\n"
-                : "Failed to remove directory: " + dirPath + "\n";
+        while (!pending.isEmpty()) {
+            out.write(pending.removeFirst().join());
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt((int) total);
+        out.write(trailer.array());
     }
 
-    private boolean deleteRecursive(File file) {
-        if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files != null) {
-                for (File f : files) {
-                    deleteRecursive(f);
+    private static byte[] deflateBlock(byte[] input, byte[] dictionary, int level, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary.length > 0) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
                 }
+            } else {
+                int length;
+                do {
+                    length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, length);
+                } while (length == buffer.length);
             }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
         }
-        return file.delete();
     }
 
-    private String removeDirectory(String dirName) {
-        File dir = new File(currentDirectory, dirName);
-        if (!dir.exists() || !dir.isDirectory()) {
-            return dirName + " directory not found.\n";
+    // Runs the command with the piped words appended as arguments, in batches of -n words and on up to
+    // -P threads. Output comes back in batch order whatever order the batches finish in.
+    private String xargs(String[] cmdParts, String input) {
+        int batchSize = 0;
+        int jobs = 1;
+        int first = 1;
+        try {
+            while (first + 1 < cmdParts.length && (cmdParts[first].equals("-n") || cmdParts[first].equals("-P"))) {
+                int value = Integer.parseInt(cmdParts[first + 1]);
+                if (value < 1) {
+                    throw new NumberFormatException();
+                }
+                if (cmdParts[first].equals("-n")) {
+                    batchSize = value;
+                } else {
+                    jobs = value;
+                }
+                first += 2;
+            }
+        } catch (NumberFormatException e) {
+            first = cmdParts.length;
+        }
+        if (first >= cmdParts.length) {
+            return "Usage: xargs [-n <count>] [-P <jobs>] <command> [<initial_arguments>]\n";
+        }
+        String name = cmdParts[first].toLowerCase();
+        // Batches may run concurrently, so commands that change the session itself are refused
+        if (!COMMANDS.contains(name) || name.equals("exit") || name.equals("cd")
+                || name.equals("export") || name.equals("set") || name.equals("unset")) {
+            return "xargs: cannot run " + cmdParts[first] + "\n";
         }
+        String command = String.join(" ", Arrays.copyOfRange(cmdParts, first, cmdParts.length));
 
-        String[] files = dir.list();
-        if (files == null || files.length == 0) {
-            if (dir.delete()) {
-                return dirName + " Directory removed.\n";
-            } else {
-                return "Error removing directory: " + dirName + "\n";
+        List<String> words = new ArrayList<>();
+        if (input != null) {
+            for (String word : input.trim().split("\\s+")) {
+                if (!word.isEmpty()) {
+                    words.add(word);
+                }
             }
-        } else {
-            return dirName + " Directory is not empty.\n";
         }
-    }
+        if (words.isEmpty()) {
+            return "";
+        }
+        if (batchSize == 0) {
+            // Without -n, spread the words over the jobs so that -P alone still runs in parallel
+            batchSize = Math.min(XARGS_MAX_ARGS, (words.size() + jobs - 1) / jobs);
+        }
+        List<String> batches = new ArrayList<>();
+        for (int i = 0; i < words.size(); i += batchSize) {
+            batches.add(command + " " + String.join(" ", words.subList(i, Math.min(words.size(), i + batchSize))));
+        }
 
-    private String listDirectory(boolean showHidden, boolean reverseOrder) {
         StringBuilder output = new StringBuilder();
-        File dir = new File(currentDirectory);
-        File[] files = dir.listFiles();
+        beginProgress("xargs", cmdParts, 0, 0);
+        if (jobs == 1 || batches.size() == 1) {
+            for (String batch : batches) {
+                if (cancelRequested()) {
+                    break;
+                }
+                output.append(runBatch(batch));
+            }
+            return output.append(endProgress()).toString();
+        }
 
-        if (files == null) {
-            return "Cannot access directory: " + currentDirectory + "\n";
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, batches.size()), runnable -> {
+            Thread thread = new Thread(runnable, "xargs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (String batch : batches) {
+                // A cancelled run skips the batches that have not started yet
+                results.add(executor.submit(() -> cancelRequested() ? "" : runBatch(batch)));
+            }
+            for (Future<String> result : results) {
+                try {
+                    output.append(Objects.toString(result.get(), ""));
+                } catch (ExecutionException e) {
+                    output.append("xargs: ").append(command).append(": ").append(e.getCause()).append("\n");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
         }
+        return output.append(endProgress()).toString();
+    }
 
-        List<File> fileList = Arrays.asList(files);
-        if (reverseOrder) {
-            fileList.sort(Comparator.comparing(File::getName).reversed());
-        } else {
-            fileList.sort(Comparator.comparing(File::getName));
+    // A batch runs as a pipeline stage would, with its own Stage event and trace line
+    private String runBatch(String batch) {
+        byte[] output = runStage(batch, null);
+        return output != null ? new String(output) : "";
+    }
+
+    private String syncDirectories(String[] cmdParts) {
+        boolean useChecksums = false;
+        boolean delete = false;
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i < cmdParts.length; i++) {
+            if (cmdParts[i].equals("-c")) {
+                useChecksums = true;
+            } else if (cmdParts[i].equals("--delete")) {
+                delete = true;
+            } else {
+                names.add(cmdParts[i]);
+            }
+        }
+        if (names.size() != 2) {
+            return "Usage: sync [-c] [--delete] <source_directory> <destination_directory>\n";
+        }
+        Path source = resolve(names.get(0));
+        Path destination = resolve(names.get(1));
+        if (!isDirectory(source)) {
+            return "Source directory does not exist: " + names.get(0) + "\n";
+        }
+        if (destination.startsWith(source) || source.startsWith(destination)) {
+            return "sync: " + names.get(0) + " and " + names.get(1) + " must not contain each other\n";
         }
+        releaseAppendChannels(destination);
 
-        for (File file : fileList) {
-            // Skip hidden files if not showing hidden
-            if (!showHidden && file.getName().startsWith(".")) {
-                continue;
+        StringBuilder output = new StringBuilder();
+        Map<String, SyncEntry> manifest = readManifest(destination.resolve(SYNC_MANIFEST));
+        List<String> directories = new ArrayList<>(Collections.singletonList(""));
+        Map<String, BasicFileAttributes> files = new TreeMap<>();
+        try {
+            Files.createDirectories(destination);
+            for (Map.Entry<String, BasicFileAttributes> entry : walkTree(source).entrySet()) {
+                if (entry.getValue().isDirectory()) {
+                    directories.add(entry.getKey());
+                    Files.createDirectories(destination.resolve(entry.getKey()));
+                } else if (entry.getValue().isRegularFile() && !entry.getKey().equals(SYNC_MANIFEST)) {
+                    files.put(entry.getKey(), entry.getValue());
+                }
             }
+        } catch (IOException e) {
+            return "Failed to sync: " + e.getMessage() + "\n";
+        }
+        pathChanged(destination);
 
-            // Check if it's a directory
-            if (file.isDirectory()) {
-                output.append(file.getName()).append("\n");
+        // Files are compared and copied independently, so they are spread over the common pool
+        boolean checksums = useChecksums;
+        List<SyncResult> results = files.entrySet().parallelStream()
+                .map(file -> syncFile(source, destination, file.getKey(), file.getValue(), manifest.get(file.getKey()), checksums))
+                .collect(Collectors.toList());
+
+        Map<String, SyncEntry> updated = new TreeMap<>();
+        int copied = 0;
+        int unchanged = 0;
+        for (SyncResult result : results) {
+            if (result.entry != null) {
+                updated.put(result.name, result.entry);
             }
-            // Print .txt files without any tags, just the name
-            else if (!file.getName().contains(".")) {
-                output.append(file.getName()).append(".txt\n");
+            if (result.error != null) {
+                output.append("Failed to sync ").append(result.name).append(": ").append(result.error).append("\n");
+            } else if (result.copied) {
+                output.append("Copied ").append(result.name).append("\n");
+                copied++;
+            } else {
+                unchanged++;
             }
-            // For all other files, print their names normally
-            else {
-                output.append(file.getName()).append("\n");
+        }
+
+        int deleted = 0;
+        if (delete) {
+            try {
+                for (String extra : extraneousEntries(destination, new HashSet<>(directories), files.keySet())) {
+                    Path path = destination.resolve(extra);
+                    if (deleteRecursive(path)) {
+                        output.append("Deleted ").append(extra).append("\n");
+                        deleted++;
+                    } else {
+                        output.append("Failed to delete ").append(extra).append("\n");
+                    }
+                    pathChanged(path);
+                }
+            } catch (IOException e) {
+                output.append("Failed to delete extraneous files: ").append(e.getMessage()).append("\n");
             }
         }
 
+        try {
+            writeManifest(destination.resolve(SYNC_MANIFEST), updated);
+        } catch (IOException e) {
+            output.append("Failed to save the sync manifest: ").append(e.getMessage()).append("\n");
+        }
+        output.append("Synced ").append(names.get(0)).append(" to ").append(names.get(1)).append(": ")
+                .append(copied).append(" copied, ").append(unchanged).append(" unchanged, ")
+                .append(deleted).append(" deleted\n");
         return output.toString();
     }
 
-    private String copyFile(String sourceFile, String destinationFile) {
-        File src = new File(currentDirectory, sourceFile);
-        File dest = new File(currentDirectory, destinationFile);
-
-        if (!src.exists()) return "Source file not found: " + sourceFile + "\n";
+    // Compares one file against its copy and replaces the copy when it differs. The copy is always
+    // looked at, so one that was removed or edited is repaired; the manifest entry records what both
+    // sides looked like after the last sync, so unchanged files need no hashing.
+    private SyncResult syncFile(Path sourceRoot, Path destinationRoot, String name, BasicFileAttributes attrs,
+                                SyncEntry previous, boolean useChecksums) {
+        Path source = sourceRoot.resolve(name);
+        Path target = destinationRoot.resolve(name);
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        try {
+            BasicFileAttributes existing = null;
+            try {
+                existing = Files.readAttributes(target, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                // Not copied yet
+            }
+            if (existing != null && existing.isRegularFile() && existing.size() == size) {
+                boolean targetModified = existing.lastModifiedTime().toMillis() != modified;
+                if (!useChecksums && !targetModified) {
+                    return new SyncResult(name, false, new SyncEntry(size, modified,
+                            previous != null && previous.matches(size, modified) ? previous.hash : null), null);
+                }
+                if (useChecksums) {
+                    boolean known = previous != null && previous.hash != null && previous.matches(size, modified);
+                    String sourceHash = known ? previous.hash : checksum(source, "SHA-256");
+                    String targetHash = known && !targetModified ? previous.hash : checksum(target, "SHA-256");
+                    if (sourceHash.equals(targetHash)) {
+                        if (targetModified) {
+                            Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+                        }
+                        return new SyncResult(name, false, new SyncEntry(size, modified, sourceHash), null);
+                    }
+                }
+            }
 
-        try (FileInputStream fis = new FileInputStream(src); FileOutputStream fos = new FileOutputStream(dest)) {
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
+            // Copy into a temp sibling and rename it over the target, as redirects do
+            Path temp = target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
+            Checksum checksum = useChecksums ? Checksum.of("SHA-256") : null;
+            try {
+                try (InputStream in = Files.newInputStream(source);
+                     OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int length;
+                    while ((length = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, length);
+                        if (checksum != null) {
+                            checksum.update(ByteBuffer.wrap(buffer, 0, length));
+                        }
+                    }
+                }
+                Files.setLastModifiedTime(temp, attrs.lastModifiedTime());
+                copyPermissions(source, temp);
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
             }
-            return "File copied from " + sourceFile + " to " + destinationFile + "\n";
+            pathChanged(target);
+            return new SyncResult(name, true, new SyncEntry(size, modified, checksum != null ? checksum.hex() : null), null);
         } catch (IOException e) {
-            return "Error during file copy: " + e.getMessage() + "\n";
+            return new SyncResult(name, false, null, e.getMessage());
         }
     }
 
-    private String copyFileToDirectory(String sourceFile, File destinationDirectory) {
-        return copyFile(sourceFile, new File(destinationDirectory, new File(sourceFile).getName()).getPath());
+    // Entries of the destination tree that have no counterpart in the source, outermost first
+    private List<String> extraneousEntries(Path destination, Set<String> directories, Set<String> files) throws IOException {
+        List<String> extra = new ArrayList<>();
+        Files.walkFileTree(destination, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String relative = destination.relativize(dir).toString();
+                if (directories.contains(relative)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                extra.add(relative);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String relative = destination.relativize(file).toString();
+                if (!files.contains(relative) && !relative.equals(SYNC_MANIFEST)) {
+                    extra.add(relative);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return extra;
     }
 
-    private String displayFileContents(String fileName) {
-        StringBuilder output = new StringBuilder();
-        File file = new File(currentDirectory, fileName);
-        if (!file.exists()) {
-            return "File not found: " + fileName + "\n";
-        }
+    // Every entry below the root by its path relative to the root, in name order, so parents come before children
+    private Map<String, BasicFileAttributes> walkTree(Path root) throws IOException {
+        Map<String, BasicFileAttributes> entries = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root)) {
+                    entries.put(root.relativize(dir).toString(), attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                entries.put(root.relativize(file).toString(), attrs);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+    private Map<String, SyncEntry> readManifest(Path manifest) {
+        Map<String, SyncEntry> entries = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
             String line;
             while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[3], new SyncEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            fields[2].equals("-") ? null : fields[2]));
+                }
             }
-        } catch (IOException e) {
-            return "Error reading file: " + e.getMessage() + "\n";
+        } catch (IOException | NumberFormatException e) {
+            // No usable manifest: every file is compared from scratch
+            entries.clear();
         }
-        return output.toString();
+        return entries;
     }
 
-    private void readFromUserInput() {
-        System.out.println("Enter text (type 'exit' to finish input):");
-        StringBuilder input = new StringBuilder();
-        Scanner userScanner = new Scanner(System.in);
-
-        String line;
-        while (true) {
-            line = userScanner.nextLine();
-            if (line.equalsIgnoreCase("exit") ) {
-                break;
-            }
-            input.append(line).append(System.lineSeparator());
+    private void writeManifest(Path manifest, Map<String, SyncEntry> entries) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, SyncEntry> entry : entries.entrySet()) {
+            SyncEntry value = entry.getValue();
+            content.append(value.size).append('\t').append(value.modified).append('\t')
+                    .append(value.hash != null ? value.hash : "-").append('\t').append(entry.getKey()).append('\n');
         }
-
-        System.out.println("You entered:");
-        System.out.println(input.toString());
-    }
-    private String appendToFile(String fileName, String content) {
-        File file = new File(currentDirectory, fileName);
-        try {
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            try (PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
-                writer.print(content);
-                return "Content appended to " + fileName + "\n";
-            }
-        } catch (IOException e) {
-            return "Failed to append to file: " + e.getMessage() + "\n";
+        String result = writeToFile(manifest.toString(), content.toString().getBytes(StandardCharsets.UTF_8));
+        if (!result.startsWith("Content written")) {
+            throw new IOException(result.trim());
         }
     }
 
-    private String moveFile(String sourcePath, String destinationPath) {
-        File src = new File(currentDirectory, sourcePath);
-        File dest = new File(currentDirectory, destinationPath);
+    // Size, modification time and, when known, SHA-256 of a file as of the last sync
+    private static class SyncEntry {
+        final long size;
+        final long modified;
+        final String hash;
 
-        if (!src.exists()) {
-            return "Source does not exist: " + sourcePath + "\n";
+        SyncEntry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
         }
 
-        // If destination is a directory, move into it
-        if (dest.isDirectory()) {
-            dest = new File(dest, src.getName());
+        boolean matches(long size, long modified) {
+            return this.size == size && this.modified == modified;
         }
+    }
+
+    private static class SyncResult {
+        final String name;
+        final boolean copied;
+        final SyncEntry entry;
+        final String error;
 
-        // Create parent directories if they don't exist
-        if (dest.getParentFile() != null) {
-            dest.getParentFile().mkdirs();
+        SyncResult(String name, boolean copied, SyncEntry entry, String error) {
+            this.name = name;
+            this.copied = copied;
+            this.entry = entry;
+            this.error = error;
         }
+    }
 
-        try {
-            if (src.renameTo(dest)) {
-                return "Successfully moved " + sourcePath + " to " + destinationPath + "\n";
-            } else {
-                // If simple rename fails, try copy and delete
-                if (src.isDirectory()) {
-                    copyDirectory(src, dest);
-                } else {
-                    copyFile(sourcePath, destinationPath);
+    private String moveFileOrDirectory(String sourcePath, String destPath) {
+        return fileOperation("mv", sourcePath, destPath, () -> sizeOf(sourcePath), () -> {
+            Path sourceFile = resolve(sourcePath);
+            Path destFile = resolve(destPath);
+            releaseAppendChannels(sourceFile);
+            releaseAppendChannels(destFile);
+
+            if (!exists(sourceFile)) {
+                return "Source does not exist: " + sourcePath + "\n";
+            }
+            if (sourceFile.getFileName() == null) {
+                return "Cannot move the root directory: " + sourcePath + "\n";
+            }
+
+            try {
+                if (isDirectory(destFile)) {
+                    // If destination is a directory, move the file into it
+                    destFile = destFile.resolve(sourceFile.getFileName());
                 }
-                deleteRecursive(src);
-                return "Successfully moved " + sourcePath + " to " + destinationPath + "\n";
+
+                // Ensure parent directories exist
+                if (destFile.getParent() != null) {
+                    Files.createDirectories(destFile.getParent());
+                }
+
+                try {
+                    Files.move(sourceFile, destFile, StandardCopyOption.REPLACE_EXISTING);
+                    pathChanged(sourceFile);
+                    pathChanged(destFile);
+                    recordProgress(0, 1);
+                    return "Successfully moved " + sourcePath + " to " + destPath + "\n";
+                } catch (IOException e) {
+                    // If rename fails, copy and then delete; the source stays unless the copy completed
+                    if (Files.isDirectory(sourceFile)) {
+                        copyDirectory(sourceFile, destFile);
+                        if (cancelRequested()) {
+                            return "Stopped moving " + sourcePath + "; the source is unchanged and " + destPath
+                                    + " holds a partial copy\n";
+                        }
+                        pathChanged(destFile);
+                        return deleteRecursive(sourceFile) ? "Successfully moved " + sourcePath + " to " + destPath + "\n"
+                                : "Copied directory but failed to remove source: " + sourcePath + "\n";
+                    }
+                    String copied = copyFileOrToDirectory(sourcePath, destPath);
+                    if (!copied.startsWith("Successfully copied")) {
+                        return copied;
+                    }
+                    if (Files.deleteIfExists(sourceFile)) {
+                        pathChanged(sourceFile);
+                        return "Successfully moved " + sourcePath + " to " + destPath + "\n";
+                    } else {
+                        return "Copied file but failed to remove source: " + sourcePath + "\n";
+                    }
+                }
+            } catch (Exception e) {
+                return "Failed to move file: " + e.getMessage() + "\n";
             }
-        } catch (IOException e) {
-            return "Failed to move: " + e.getMessage() + "\n";
-        }
+        });
     }
 
-    private void copyDirectory(File src, File dest) throws IOException {
-        if (!dest.exists()) {
-            dest.mkdir();
+    // Command history: an append-only log on disk plus in-memory indexes for !prefix and substring search
+    private static class CommandHistory {
+        // Prefixes longer than this are finished off by scanning the entries under the deepest node
+        private static final int TRIE_DEPTH = 24;
+
+        private final List<String> entries = new ArrayList<>();
+        private final TrieNode root = new TrieNode();
+        private final Map<Integer, IntList> trigrams = new HashMap<>();
+        private final File file;
+        private final Thread loader;
+        private FileChannel log;
+
+        CommandHistory(File file) {
+            this.file = file;
+            if (file != null && file.exists()) {
+                // Loaded in the background so a large history does not delay the first prompt
+                loader = new Thread(this::load, "history-loader");
+                loader.setDaemon(true);
+                loader.start();
+            } else {
+                loader = null;
+            }
         }
-        File[] files = src.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                File newDest = new File(dest, file.getName());
-                if (file.isDirectory()) {
-                    copyDirectory(file, newDest);
-                } else {
-                    copyFile(file.getPath(), newDest.getPath());
+
+        private void load() {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        index(line);
+                    }
                 }
+            } catch (IOException e) {
+                // An unreadable history only means starting with an empty one
             }
         }
-    }
 
-    private String createFile(String filename) {
-        File file = new File(currentDirectory, filename);
-        try {
-            return file.createNewFile() ? "File created: " + filename + "\n" : "File already exists: " + filename + "\n";
-        } catch (IOException e) {
-            return "Failed to create file: " + filename + "\n";
+        private synchronized void awaitLoaded() {
+            if (loader == null) {
+                return;
+            }
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-    }
 
-    private void changeDirectory(String path) {
-        File newDir = new File(currentDirectory, path);
-        if(path.equals(".")){
-            return;
+        synchronized void add(String command) {
+            awaitLoaded();
+            index(command);
+            if (file == null) {
+                return;
+            }
+            try {
+                if (log == null) {
+                    log = FileChannel.open(file.toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+            } catch (IOException e) {
+                // Keep the entry in memory even if it cannot be persisted
+            }
         }
-        if (path.equals("..")) {
-            currentDirectory = new File(currentDirectory).getParent();
-        } else if (newDir.isDirectory()) {
-            currentDirectory = newDir.getAbsolutePath();
+
+        private void index(String command) {
+            int id = entries.size();
+            entries.add(command);
+            insertPrefixes(command, id);
+
+            for (int i = 0; i + 3 <= command.length(); i++) {
+                IntList postings = trigrams.computeIfAbsent(trigram(command, i), k -> new IntList());
+                // An entry can contain the same trigram more than once
+                if (postings.size == 0 || postings.last() != id) {
+                    postings.add(id);
+                }
+            }
         }
-        else {
-            System.out.println("Directory not found: " + path);
+
+        // Paths are only materialised once two entries share them; a lone entry parks as "pending" on the node
+        private void insertPrefixes(String command, int id) {
+            TrieNode node = root;
+            int end = Math.min(command.length(), TRIE_DEPTH);
+            for (int depth = 0; ; depth++) {
+                node.latest = id;
+                if (depth == TRIE_DEPTH) {
+                    node.deep().add(id);
+                    return;
+                }
+                if (depth == end) {
+                    return;
+                }
+                if (node.pending >= 0) {
+                    int parkedId = node.pending;
+                    String parked = entries.get(parkedId);
+                    node.pending = -1;
+                    if (parked.length() > depth) {
+                        TrieNode child = node.addChild(parked.charAt(depth));
+                        child.latest = parkedId;
+                        if (depth + 1 == TRIE_DEPTH) {
+                            child.deep().add(parkedId);
+                        } else if (depth + 1 < parked.length()) {
+                            child.pending = parkedId;
+                        }
+                    }
+                } else if (node.keys.length == 0) {
+                    node.pending = id;
+                    return;
+                }
+                node = node.addChild(command.charAt(depth));
+            }
         }
-    }
 
+        private static int trigram(String s, int i) {
+            return ((s.charAt(i) & 0x3ff) << 20) | ((s.charAt(i + 1) & 0x3ff) << 10) | (s.charAt(i + 2) & 0x3ff);
+        }
 
-    private String copyFileOrToDirectory(String sourcePath, String destPath) {
-        File sourceFile = new File(currentDirectory, sourcePath);
-        File destFile = new File(currentDirectory, destPath);
+        synchronized int size() {
+            awaitLoaded();
+            return entries.size();
+        }
 
-        if (!sourceFile.exists()) {
-            return "Source file does not exist: " + sourcePath + "\n";
+        // Entry numbers shown to the user start at 1
+        synchronized String get(int number) {
+            awaitLoaded();
+            return number >= 1 && number <= entries.size() ? entries.get(number - 1) : null;
         }
 
-        try {
-            if (destFile.isDirectory()) {
-                // If destination is a directory, create a new file inside it with the source file's name
-                destFile = new File(destFile, sourceFile.getName());
+        // Most recent entry starting with the prefix, or null
+        synchronized String latestWithPrefix(String prefix) {
+            awaitLoaded();
+            TrieNode node = root;
+            for (int depth = 0; depth < prefix.length() && depth < TRIE_DEPTH; depth++) {
+                if (node.pending >= 0) {
+                    String parked = entries.get(node.pending);
+                    return parked.startsWith(prefix) ? parked : null;
+                }
+                node = node.child(prefix.charAt(depth));
+                if (node == null) {
+                    return null;
+                }
+            }
+            if (prefix.length() <= TRIE_DEPTH) {
+                return node.latest >= 0 ? entries.get(node.latest) : null;
             }
+            for (int i = node.deep().size - 1; i >= 0; i--) {
+                String entry = entries.get(node.deep().values[i]);
+                if (entry.startsWith(prefix)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
 
-            // Ensure parent directories exist
-            if (destFile.getParentFile() != null) {
-                destFile.getParentFile().mkdirs();
+        // Entry numbers containing the text, newest first
+        synchronized List<Integer> search(String text, int limit) {
+            awaitLoaded();
+            List<Integer> matches = new ArrayList<>();
+            if (text.length() < 3) {
+                for (int id = entries.size() - 1; id >= 0 && matches.size() < limit; id--) {
+                    if (entries.get(id).contains(text)) {
+                        matches.add(id + 1);
+                    }
+                }
+                return matches;
             }
 
-            try (FileInputStream fis = new FileInputStream(sourceFile);
-                 FileOutputStream fos = new FileOutputStream(destFile)) {
+            // Walk the rarest trigram's postings and verify each candidate
+            IntList rarest = null;
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                IntList postings = trigrams.get(trigram(text, i));
+                if (postings == null) {
+                    return matches;
+                }
+                if (rarest == null || postings.size < rarest.size) {
+                    rarest = postings;
+                }
+            }
+            for (int i = rarest.size - 1; i >= 0 && matches.size() < limit; i--) {
+                int id = rarest.values[i];
+                if (entries.get(id).contains(text)) {
+                    matches.add(id + 1);
+                }
+            }
+            return matches;
+        }
 
-                byte[] buffer = new byte[8192];
-                int length;
-                while ((length = fis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, length);
+        synchronized void close() {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException ignored) {
+                    // Exiting anyway
                 }
+                log = null;
             }
-            return "Successfully copied " + sourcePath + " to " + destPath + "\n";
-        } catch (IOException e) {
-            return "Failed to copy file: " + e.getMessage() + "\n";
         }
-    }
 
-    private String moveFileOrDirectory(String sourcePath, String destPath) {
-        File sourceFile = new File(currentDirectory, sourcePath);
-        File destFile = new File(currentDirectory, destPath);
+        private static class TrieNode {
+            // Children are kept in small parallel arrays; most nodes have only one or two
+            char[] keys = new char[0];
+            TrieNode[] children = new TrieNode[0];
+            int latest = -1;
+            int pending = -1;
+            // Entries at least TRIE_DEPTH long, only kept on the deepest nodes
+            IntList deep;
 
-        if (!sourceFile.exists()) {
-            return "Source does not exist: " + sourcePath + "\n";
-        }
+            IntList deep() {
+                if (deep == null) {
+                    deep = new IntList();
+                }
+                return deep;
+            }
 
-        try {
-            if (destFile.isDirectory()) {
-                // If destination is a directory, move the file into it
-                destFile = new File(destFile, sourceFile.getName());
+            TrieNode child(char c) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == c) {
+                        return children[i];
+                    }
+                }
+                return null;
             }
 
-            // Ensure parent directories exist
-            if (destFile.getParentFile() != null) {
-                destFile.getParentFile().mkdirs();
+            TrieNode addChild(char c) {
+                TrieNode node = child(c);
+                if (node == null) {
+                    node = new TrieNode();
+                    keys = Arrays.copyOf(keys, keys.length + 1);
+                    children = Arrays.copyOf(children, children.length + 1);
+                    keys[keys.length - 1] = c;
+                    children[children.length - 1] = node;
+                }
+                return node;
             }
+        }
 
-            if (sourceFile.renameTo(destFile)) {
-                return "Successfully moved " + sourcePath + " to " + destPath + "\n";
-            } else {
-                // If rename fails, try copy and delete
-                copyFileOrToDirectory(sourcePath, destPath);
-                if (sourceFile.delete()) {
-                    return "Successfully moved " + sourcePath + " to " + destPath + "\n";
-                } else {
-                    return "Copied file but failed to remove source: " + sourcePath + "\n";
+        private static class IntList {
+            int[] values = new int[4];
+            int size;
+
+            void add(int value) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
                 }
+                values[size++] = value;
+            }
+
+            int last() {
+                return values[size - 1];
             }
-        } catch (Exception e) {
-            return "Failed to move file: " + e.getMessage() + "\n";
         }
     }
 
     public static void main(String[] args) {
         Command_Line cli = new Command_Line();
+        cli.setHistoryFile(new File(System.getProperty("user.home"), ".cli_history"));
+        if (System.getProperty("cli.trace") != null) {
+            cli.setTraceFile(new File(System.getProperty("cli.trace")));
+        }
         cli.start();
     }
 }
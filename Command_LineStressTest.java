@@ -0,0 +1,211 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.function.IntFunction;
+
+// Load and fuzz harness for the parser and dispatcher. Skipped unless run with -Dcli.stress=true;
+// -Dcli.stress.commands=<n> sets the load, e.g. 2000000 for a real run. Everything happens on an
+// in-memory file system, so random rm -r and mv lines cannot touch the disk.
+class Command_LineStressTest {
+    private static final int COMMANDS = Integer.getInteger("cli.stress.commands", 20000);
+    private static final long SEED = Long.getLong("cli.stress.seed", 42);
+    // A single line taking this long is reported as pathological
+    private static final long SLOW_LINE_MILLIS = 2000;
+
+    private static final String[] COMMAND_NAMES = {
+            "ls", "ls -a", "ls -r", "pwd", "cd", "mkdir", "touch", "rm", "rm -r", "rmdir", "cp", "cp --verify", "mv",
+            "cat", "cat --encoding UTF-16", "sha256sum", "md5sum", "crc32", "sha256sum -c", "gzip", "gzip -k", "gunzip",
+            "zcat", "history", "history -s", "complete", "export", "set", "unset", "xargs", "xargs -n 2 -P 3",
+            "sync", "sync -c --delete", "locks", "help", ">", ">>", "frobnicate", "", "!!", "!-1", "!ls", "!999999"};
+    private static final String[] WORDS = {
+            "a", "b.txt", "dir", "dir/sub", "..", ".", "~", "/", "*", "*.txt", "**", "?", "[ab]", "[", "{a,b}",
+            "{x,{y,z}}", "{", "}", "$A", "${A}", "$", "$(", ")", "$(pwd)", "$(ls | cat)", "\\$A", "\"", "'", "\"a b\"",
+            "'$A'", "-", "--", "-n", "-P", "0", "-1", "A=1", "=", "\u00e9", "\t", "  "};
+
+    private final PrintStream originalOut = System.out;
+    private final InputStream originalIn = System.in;
+    private Command_Line cli;
+
+    @BeforeEach
+    void setUp() {
+        cli = new Command_Line(MemoryFileSystem.create());
+        cli.setLockTimeout(1000);
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        // cat with no arguments reads lines until "exit"
+        System.setIn(new InputStream() {
+            private final byte[] line = "exit\n".getBytes();
+            private int position;
+
+            @Override
+            public int read() {
+                return line[position++ % line.length];
+            }
+        });
+        cli.processInput("mkdir dir");
+        cli.processInput("mkdir dir/sub");
+        cli.processInput("pwd > b.txt");
+        cli.processInput("pwd > a");
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setOut(originalOut);
+        System.setIn(originalIn);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "cli.stress", matches = "true")
+    void testRandomCommandLines() {
+        Random random = new Random(SEED);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean countAllocations = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+        long threadId = Thread.currentThread().getId();
+
+        List<String> failures = new ArrayList<>();
+        List<String> slowLines = new ArrayList<>();
+        long worstNanos = 0;
+        String worstLine = null;
+        long allocatedBefore = countAllocations
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId) : 0;
+        long started = System.nanoTime();
+        for (int i = 0; i < COMMANDS; i++) {
+            if (i % 5000 == 4999) {
+                // Keep the history from dominating memory on long runs
+                cli.setHistoryFile(null);
+            }
+            String line = randomLine(random);
+            long lineStarted = System.nanoTime();
+            try {
+                cli.processInput(line);
+            } catch (RuntimeException | StackOverflowError e) {
+                if (failures.size() < 10) {
+                    failures.add(abbreviate(line) + " -> " + e);
+                }
+            }
+            long elapsed = System.nanoTime() - lineStarted;
+            if (elapsed > worstNanos) {
+                worstNanos = elapsed;
+                worstLine = line;
+            }
+            if (elapsed > SLOW_LINE_MILLIS * 1_000_000 && slowLines.size() < 10) {
+                slowLines.add(elapsed / 1_000_000 + " ms: " + abbreviate(line));
+            }
+        }
+        long totalNanos = System.nanoTime() - started;
+        long allocated = countAllocations
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+
+        originalOut.printf("%d command lines in %d ms: %.0f lines/s, %s bytes allocated per line, worst %.1f ms (%s)%n",
+                COMMANDS, totalNanos / 1_000_000, COMMANDS / (totalNanos / 1e9),
+                allocated < 0 ? "?" : String.valueOf(allocated / COMMANDS), worstNanos / 1e6, abbreviate(worstLine));
+        slowLines.forEach(slow -> originalOut.println("Slow line: " + slow));
+        assertTrue(failures.isEmpty(), "Uncaught exceptions:\n" + String.join("\n", failures));
+        assertTrue(slowLines.isEmpty(), "Pathologically slow lines:\n" + String.join("\n", slowLines));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "cli.stress", matches = "true")
+    void testLongInputsScaleLinearly() {
+        // Each shape is timed at two sizes eight times apart; linear work grows about 8x, quadratic 64x.
+        // Timings depend on the machine, so shapes that look superlinear are reported, not failed.
+        Map<String, IntFunction<String>> shapes = new LinkedHashMap<>();
+        shapes.put("many arguments", n -> "ls" + " x".repeat(n));
+        shapes.put("one long argument", n -> "cat " + "x".repeat(n));
+        shapes.put("many pipes", n -> "pwd" + " | cat".repeat(n / 4));
+        shapes.put("many redirects", n -> "pwd" + " > out".repeat(n / 4));
+        shapes.put("many variables", n -> "cat" + " $A".repeat(n / 2));
+        shapes.put("many substitutions", n -> "cat" + " $(pwd)".repeat(n / 4));
+        shapes.put("unclosed substitutions", n -> "cat" + " $(".repeat(n / 2));
+        shapes.put("nested substitutions", n -> "cat " + "$(".repeat(n / 8) + "pwd" + ")".repeat(n / 8));
+        shapes.put("unclosed variables", n -> "cat" + " ${A".repeat(n / 3));
+        shapes.put("unclosed braces", n -> "touch " + "{".repeat(n));
+        shapes.put("many spaces", n -> "ls" + " ".repeat(n) + "-a");
+        shapes.put("history search", n -> "history -s " + "ab".repeat(n / 2));
+        shapes.put("completion", n -> "complete ls " + "d".repeat(n));
+
+        cli.processInput("export A=dir");
+        // Warm up first so the small size is not timed in the interpreter
+        shapes.values().forEach(shape -> bestTime(shape.apply(2000)));
+        List<String> superlinear = new ArrayList<>();
+        for (Map.Entry<String, IntFunction<String>> shape : shapes.entrySet()) {
+            long small = bestTime(shape.getValue().apply(2000));
+            long large = bestTime(shape.getValue().apply(16000));
+            double growth = large / (double) Math.max(small, 50_000);
+            originalOut.printf("%-24s %8.2f ms -> %8.2f ms (x%.1f)%n", shape.getKey(), small / 1e6, large / 1e6, growth);
+            if (growth > 24) {
+                superlinear.add(shape.getKey() + " grew x" + Math.round(growth));
+            }
+        }
+        if (!superlinear.isEmpty()) {
+            originalOut.println("Possibly superlinear: " + String.join(", ", superlinear));
+        }
+    }
+
+    private long bestTime(String line) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long started = System.nanoTime();
+            try {
+                cli.processInput(line);
+            } catch (RuntimeException | StackOverflowError e) {
+                fail(abbreviate(line) + " -> " + e);
+            }
+            best = Math.min(best, System.nanoTime() - started);
+        }
+        return best;
+    }
+
+    private static String abbreviate(String line) {
+        return line == null || line.length() <= 120 ? line : line.substring(0, 120) + "... (" + line.length() + " chars)";
+    }
+
+    // Mostly well-formed lines, with malformed pieces and long arguments mixed in
+    private String randomLine(Random random) {
+        StringBuilder line = new StringBuilder();
+        int stages = random.nextInt(10) == 0 ? 1 + random.nextInt(4) : 1;
+        for (int stage = 0; stage < stages; stage++) {
+            if (stage > 0) {
+                line.append(random.nextBoolean() ? " | " : "|");
+            }
+            line.append(COMMAND_NAMES[random.nextInt(COMMAND_NAMES.length)]);
+            int arguments = random.nextInt(4);
+            for (int i = 0; i < arguments; i++) {
+                line.append(' ');
+                switch (random.nextInt(12)) {
+                    case 0:
+                        // Long argument
+                        line.append("x".repeat(1 + random.nextInt(4096)));
+                        break;
+                    case 1:
+                        // Random printable noise
+                        for (int c = random.nextInt(20); c > 0; c--) {
+                            line.append((char) (' ' + random.nextInt(95)));
+                        }
+                        break;
+                    default:
+                        line.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+            }
+        }
+        switch (random.nextInt(20)) {
+            case 0:
+                line.append(" > out.txt");
+                break;
+            case 1:
+                line.append(" >> out.txt");
+                break;
+            case 2:
+                line.append(" >");
+                break;
+            default:
+        }
+        // exit would end the session; quit-like words still reach the dispatcher as arguments
+        String result = line.toString();
+        return result.trim().equalsIgnoreCase("exit") ? "help" : result;
+    }
+}
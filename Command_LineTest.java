@@ -325,6 +325,16 @@ class Command_LineTest {
         assertEquals(tempDir.getAbsolutePath(), cli.getCurrentDirectory());
     }
 
+    @Test
+    void testCdDoesNotAffectOtherSessions() {
+        // Test each session keeps its own working directory
+        new File(tempDir, "testDir").mkdir();
+        Command_Line other = new Command_Line(MemoryFileSystem.create());
+        simulateCommand("cd testDir");
+        assertEquals(new File(tempDir, "testDir").getAbsolutePath(), cli.getCurrentDirectory());
+        assertEquals("/", other.getCurrentDirectory());
+    }
+
 
 
     @Test
@@ -512,6 +522,675 @@ class Command_LineTest {
         assertTrue(outputContent.contains("sampleDir"), "Output does not contain the expected directory.");
     }
 
+    @Test
+    void testRedirect_OverwriteLeavesNoTempFiles() throws IOException {
+        // Test > replaces the previous content atomically
+        Files.write(tempDir.toPath().resolve("out.txt"), "Old content that is longer".getBytes());
+        simulateCommand("pwd > out.txt");
+        String output = new String(Files.readAllBytes(tempDir.toPath().resolve("out.txt")));
+        assertEquals(tempDir.getAbsolutePath() + "\n", output);
+        assertEquals(1, tempDir.list().length, "Temporary file was left behind.");
+    }
+
+    @Test
+    void testAppend_CreatesMissingFile() throws IOException {
+        // Test >> creates the file on first use and appends afterwards
+        simulateCommand("pwd >> log.txt");
+        simulateCommand("pwd >> log.txt");
+        String output = new String(Files.readAllBytes(tempDir.toPath().resolve("log.txt")));
+        String line = tempDir.getAbsolutePath() + "\n";
+        assertEquals(line + line, output);
+    }
+
+    @Test
+    void testAppend_RepeatedThenRemoved() throws IOException {
+        // Test repeated >> reuses the open file and rm still removes it
+        for (int i = 0; i < 100; i++) {
+            simulateCommand("pwd >> log.txt");
+        }
+        String output = new String(Files.readAllBytes(tempDir.toPath().resolve("log.txt")));
+        assertEquals(100, output.split("\n").length);
+
+        simulateCommand("rm log.txt");
+        assertFalse(new File(tempDir, "log.txt").exists());
+
+        simulateCommand("pwd >> log.txt");
+        output = new String(Files.readAllBytes(tempDir.toPath().resolve("log.txt")));
+        assertEquals(tempDir.getAbsolutePath() + "\n", output);
+    }
+
+    @Test
+    void testRedirect_BinaryFileUnchanged() throws IOException {
+        // Test cat > copies bytes without decoding them
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Files.write(tempDir.toPath().resolve("bin.dat"), data);
+        simulateCommand("cat bin.dat > copy.dat");
+        assertArrayEquals(data, Files.readAllBytes(tempDir.toPath().resolve("copy.dat")));
+
+        simulateCommand("cat bin.dat | cat >> piped.dat");
+        assertArrayEquals(data, Files.readAllBytes(tempDir.toPath().resolve("piped.dat")));
+    }
+
+    @Test
+    void testCat_WithEncoding() throws IOException {
+        // Test cat --encoding decodes the file before printing it
+        Files.write(tempDir.toPath().resolve("utf16.txt"), "Hello\n".getBytes("UTF-16"));
+        simulateCommand("cat --encoding UTF-16 utf16.txt");
+        assertEquals("Hello\n", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("cat --encoding bogus utf16.txt");
+        assertTrue(outputStream.toString().contains("Unsupported encoding: bogus"));
+    }
+
+    @Test
+    void testHistory_PersistedAndRecalled() throws IOException {
+        // Test history is written to disk and reloaded by a new session
+        File historyFile = new File(tempDir, ".history");
+        cli.setHistoryFile(historyFile);
+        simulateCommand("mkdir first");
+        simulateCommand("pwd");
+
+        cli = new Command_Line();
+        cli.setCurrentDirectory(tempDir.getAbsolutePath());
+        cli.setHistoryFile(historyFile);
+        outputStream.reset();
+        simulateCommand("history");
+        String output = outputStream.toString();
+        assertTrue(output.contains("1  mkdir first"));
+        assertTrue(output.contains("2  pwd"));
+
+        // Test !prefix and !n re-run earlier commands
+        simulateCommand("!mk");
+        assertTrue(outputStream.toString().contains("Failed to create directory: first"));
+        outputStream.reset();
+        simulateCommand("!2");
+        assertTrue(outputStream.toString().contains(tempDir.getAbsolutePath()));
+
+        outputStream.reset();
+        simulateCommand("history -s kdir");
+        assertTrue(outputStream.toString().contains("mkdir first"));
+
+        outputStream.reset();
+        simulateCommand("!nothing");
+        assertTrue(outputStream.toString().contains("!nothing: event not found"));
+    }
+
+    @Test
+    void testComplete_CommandsAndPaths() throws IOException {
+        // Test completion of command names and of entries in the current directory
+        new File(tempDir, "report1.txt").createNewFile();
+        new File(tempDir, "report2.txt").createNewFile();
+        new File(tempDir, "reports").mkdir();
+        assertEquals(java.util.Arrays.asList("mkdir"), cli.complete("mk"));
+        assertEquals(java.util.Arrays.asList("report1.txt", "report2.txt", "reports/"), cli.complete("cat rep"));
+
+        // Test files created and removed by the shell show up without a rescan
+        simulateCommand("touch reports/inner.txt");
+        assertEquals(java.util.Arrays.asList("reports/inner.txt"), cli.complete("cat reports/i"));
+        simulateCommand("rm report1.txt");
+        assertEquals(java.util.Arrays.asList("report2.txt", "reports/"), cli.complete("cat rep"));
+    }
+
+    @Test
+    void testGlob_Expansion() throws IOException {
+        // Test *, ? and {a,b} expand to matching names
+        simulateCommand("touch log{1,2,3}.txt notes.md");
+        assertTrue(new File(tempDir, "log1.txt").exists());
+        assertTrue(new File(tempDir, "log3.txt").exists());
+
+        simulateCommand("mkdir archive");
+        simulateCommand("cp log?.txt archive");
+        assertTrue(new File(tempDir, "archive/log2.txt").exists());
+        assertFalse(new File(tempDir, "archive/notes.md").exists());
+
+        simulateCommand("rm *.txt");
+        assertFalse(new File(tempDir, "log1.txt").exists());
+        assertTrue(new File(tempDir, "notes.md").exists());
+
+        // Test ** matches below the current directory and unmatched patterns stay literal
+        Files.write(tempDir.toPath().resolve("archive/log2.txt"), "nested".getBytes());
+        outputStream.reset();
+        simulateCommand("cat **/log2.txt");
+        assertEquals("nested", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("rm *.none");
+        assertTrue(outputStream.toString().contains("Failed to remove file: *.none"));
+    }
+
+    @Test
+    void testInMemoryFileSystem() {
+        // Test a session backed by the in-memory file system never touches the disk
+        cli = new Command_Line(MemoryFileSystem.create());
+        simulateCommand("mkdir docs");
+        simulateCommand("cd docs");
+        simulateCommand("pwd > where.txt");
+        simulateCommand("cp where.txt copy.txt");
+        simulateCommand("mv copy.txt moved.txt");
+        outputStream.reset();
+        simulateCommand("ls");
+        assertEquals("moved.txt\nwhere.txt\n", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("cat moved.txt");
+        assertEquals("/docs\n", outputStream.toString());
+
+        // Test > replaces an existing file, which renames the new content over it
+        simulateCommand("ls > where.txt");
+        outputStream.reset();
+        simulateCommand("cat where.txt");
+        assertEquals("moved.txt\nwhere.txt\n", outputStream.toString());
+
+        simulateCommand("cd ..");
+        simulateCommand("rm -r docs");
+        outputStream.reset();
+        simulateCommand("ls");
+        assertEquals("", outputStream.toString());
+        assertEquals(0, tempDir.list().length);
+    }
+
+    @Test
+    void testCd_NormalizesPaths() throws IOException {
+        // Test . and .. inside a path are resolved before changing directory
+        new File(tempDir, "testDir/nestedDir").mkdirs();
+        simulateCommand("cd testDir/../testDir/./nestedDir");
+        assertEquals(new File(tempDir, "testDir/nestedDir").getAbsolutePath(), cli.getCurrentDirectory());
+
+        simulateCommand("cd ../..");
+        assertEquals(tempDir.getAbsolutePath(), cli.getCurrentDirectory());
+
+        // Test ~ is the home directory
+        simulateCommand("cd ~");
+        assertEquals(Paths.get(System.getProperty("user.home")).toAbsolutePath().normalize().toString(),
+                cli.getCurrentDirectory());
+    }
+
+    @Test
+    void testCd_SeesDirectoryCreatedAfterFailedLookup() {
+        // Test a cached "not found" is dropped once the shell creates the directory
+        simulateCommand("cd later");
+        assertTrue(outputStream.toString().contains("Directory not found: later"));
+        simulateCommand("mkdir later");
+        simulateCommand("cd later");
+        assertEquals(new File(tempDir, "later").getAbsolutePath(), cli.getCurrentDirectory());
+    }
+
+    @Test
+    void testChecksums() throws IOException {
+        // Test checksums of a known input
+        Files.write(tempDir.toPath().resolve("abc.txt"), "abc".getBytes());
+        simulateCommand("sha256sum abc.txt");
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad  abc.txt\n", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("md5sum abc.txt");
+        assertEquals("900150983cd24fb0d6963f7d28e17f72  abc.txt\n", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("crc32 abc.txt");
+        assertEquals("352441c2  abc.txt\n", outputStream.toString());
+
+        // Test -c reports files that changed since the list was written
+        Files.write(tempDir.toPath().resolve("other.txt"), "other".getBytes());
+        simulateCommand("sha256sum abc.txt other.txt > sums.txt");
+        Files.write(tempDir.toPath().resolve("other.txt"), "changed".getBytes());
+        outputStream.reset();
+        simulateCommand("sha256sum -c sums.txt");
+        String output = outputStream.toString();
+        assertTrue(output.contains("abc.txt: OK"));
+        assertTrue(output.contains("other.txt: FAILED"));
+    }
+
+    @Test
+    void testCp_Verify() throws IOException {
+        // Test cp --verify copies the file and confirms the checksum
+        Files.write(tempDir.toPath().resolve("source.txt"), "Test content".getBytes());
+        simulateCommand("cp --verify source.txt dest.txt");
+        assertEquals("Test content", new String(Files.readAllBytes(tempDir.toPath().resolve("dest.txt"))));
+        assertTrue(outputStream.toString().contains("Verified dest.txt"));
+    }
+
+    @Test
+    void testGzip_RoundTrip() throws IOException {
+        // Test gzip -k keeps the source and gunzip restores it
+        Files.write(tempDir.toPath().resolve("notes.txt"), "Test content".getBytes());
+        simulateCommand("gzip -k notes.txt");
+        assertTrue(new File(tempDir, "notes.txt").exists());
+        assertTrue(new File(tempDir, "notes.txt.gz").exists());
+
+        // Test an existing target is kept unless -f is given, and .gz files are not compressed again
+        long compressedSize = new File(tempDir, "notes.txt.gz").length();
+        Files.write(tempDir.toPath().resolve("notes.txt"), "Other content, longer than before".getBytes());
+        outputStream.reset();
+        simulateCommand("gzip -k notes.txt");
+        simulateCommand("gzip notes.txt.gz");
+        assertEquals("gzip: notes.txt.gz already exists; use -f to overwrite\n"
+                + "gzip: notes.txt.gz already has .gz suffix -- unchanged\n", outputStream.toString());
+        assertEquals(compressedSize, new File(tempDir, "notes.txt.gz").length());
+        assertFalse(new File(tempDir, "notes.txt.gz.gz").exists());
+        simulateCommand("gzip -k -f notes.txt");
+        assertNotEquals(compressedSize, new File(tempDir, "notes.txt.gz").length());
+        Files.write(tempDir.toPath().resolve("notes.txt"), "Test content".getBytes());
+        simulateCommand("gzip -k -f notes.txt");
+        assertEquals(0, tempDir.list((dir, name) -> name.endsWith(".tmp")).length);
+
+        outputStream.reset();
+        simulateCommand("zcat notes.txt.gz");
+        assertTrue(outputStream.toString().startsWith("Test content"));
+
+        simulateCommand("rm notes.txt");
+        simulateCommand("gunzip notes.txt.gz");
+        assertFalse(new File(tempDir, "notes.txt.gz").exists());
+        assertEquals("Test content", new String(Files.readAllBytes(tempDir.toPath().resolve("notes.txt"))));
+
+        // Test gzip and gunzip as pipeline stages
+        simulateCommand("cat notes.txt | gzip > piped.gz");
+        try (InputStream in = new java.util.zip.GZIPInputStream(new FileInputStream(new File(tempDir, "piped.gz")))) {
+            assertEquals("Test content", new String(in.readAllBytes()));
+        }
+    }
+
+    @Test
+    void testGzip_LargeFileCompressedInBlocks() throws IOException {
+        // Test a file above the parallel threshold decompresses to the original bytes
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 3 == 0 ? random.nextInt(256) : 'a' + i % 7);
+        }
+        Files.write(tempDir.toPath().resolve("large.bin"), data);
+        simulateCommand("gzip large.bin");
+        assertFalse(new File(tempDir, "large.bin").exists());
+        try (InputStream in = new java.util.zip.GZIPInputStream(new FileInputStream(new File(tempDir, "large.bin.gz")))) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+
+
+    @Test
+    void testSync() throws IOException {
+        // Test the first sync copies the whole tree
+        new File(tempDir, "src/sub").mkdirs();
+        Files.write(tempDir.toPath().resolve("src/a.txt"), "Alpha".getBytes());
+        Files.write(tempDir.toPath().resolve("src/sub/b.txt"), "Beta".getBytes());
+        simulateCommand("sync src dst");
+        assertEquals("Alpha", new String(Files.readAllBytes(tempDir.toPath().resolve("dst/a.txt"))));
+        assertEquals("Beta", new String(Files.readAllBytes(tempDir.toPath().resolve("dst/sub/b.txt"))));
+        assertTrue(outputStream.toString().contains("2 copied, 0 unchanged"));
+
+        // Test a repeat sync copies only the changed file
+        Files.write(tempDir.toPath().resolve("src/a.txt"), "Changed".getBytes());
+        outputStream.reset();
+        simulateCommand("sync src dst");
+        assertEquals("Changed", new String(Files.readAllBytes(tempDir.toPath().resolve("dst/a.txt"))));
+        assertTrue(outputStream.toString().contains("1 copied, 1 unchanged"));
+
+        // Test a plain sync repairs copies that were edited or removed since the last sync
+        Files.write(tempDir.toPath().resolve("dst/sub/b.txt"), "Edited".getBytes());
+        Files.delete(tempDir.toPath().resolve("dst/a.txt"));
+        outputStream.reset();
+        simulateCommand("sync src dst");
+        assertEquals("Beta", new String(Files.readAllBytes(tempDir.toPath().resolve("dst/sub/b.txt"))));
+        assertEquals("Changed", new String(Files.readAllBytes(tempDir.toPath().resolve("dst/a.txt"))));
+        assertTrue(outputStream.toString().contains("2 copied, 0 unchanged"));
+
+        // Test -c compares contents and --delete removes files the source no longer has
+        Files.write(tempDir.toPath().resolve("dst/extra.txt"), "Extra".getBytes());
+        outputStream.reset();
+        simulateCommand("sync -c --delete src dst");
+        assertFalse(new File(tempDir, "dst/extra.txt").exists());
+        assertTrue(outputStream.toString().contains("0 copied, 2 unchanged, 1 deleted"));
+    }
+
+    @Test
+    void testInterruptCancelsLongOperations() throws IOException {
+        // Test an interrupted cp stops before copying and reports what it did
+        Files.write(tempDir.toPath().resolve("a.txt"), "Alpha".getBytes());
+        Files.write(tempDir.toPath().resolve("b.txt"), "Beta".getBytes());
+        new File(tempDir, "dest").mkdir();
+        Thread.currentThread().interrupt();
+        simulateCommand("cp a.txt b.txt dest");
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertFalse(new File(tempDir, "dest/a.txt").exists());
+        assertTrue(outputStream.toString().contains("Cancelled cp after 0 files"));
+
+        // Test an interrupted rm -r leaves the tree in place
+        new File(tempDir, "tree/nested").mkdirs();
+        new File(tempDir, "tree/nested/file.txt").createNewFile();
+        outputStream.reset();
+        Thread.currentThread().interrupt();
+        simulateCommand("rm -r tree");
+        assertTrue(new File(tempDir, "tree/nested/file.txt").exists());
+        assertTrue(outputStream.toString().contains("Cancelled rm"));
+
+        // Test an interrupted copy over an existing file leaves the old contents and no temp file
+        Files.write(tempDir.toPath().resolve("dest/a.txt"), "Old".getBytes());
+        outputStream.reset();
+        Thread.currentThread().interrupt();
+        simulateCommand("cp a.txt dest/a.txt");
+        assertTrue(outputStream.toString().contains("Cancelled copy of a.txt; dest/a.txt was not changed"));
+        assertEquals("Old", new String(Files.readAllBytes(tempDir.toPath().resolve("dest/a.txt"))));
+        assertEquals(1, new File(tempDir, "dest").list().length);
+
+        // Test the next command runs normally
+        simulateCommand("cp a.txt b.txt dest");
+        assertTrue(new File(tempDir, "dest/b.txt").exists());
+    }
+
+    @Test
+    void testTraceFile() throws IOException {
+        // Test each pipeline, stage and file operation is written as a JSON line
+        File trace = new File(tempDir, "trace.jsonl");
+        cli.setTraceFile(trace);
+        Files.write(tempDir.toPath().resolve("a.txt"), "Alpha".getBytes());
+        simulateCommand("cat a.txt | cat > b.txt");
+        cli.setTraceFile(null);
+
+        java.util.List<String> lines = Files.readAllLines(trace.toPath());
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"event\":\"file\""));
+        assertTrue(lines.get(0).contains("\"operation\":\"read\",\"path\":\"a.txt\",\"bytes\":5"));
+        assertTrue(lines.get(1).contains("\"command\":\"cat\",\"arguments\":\"a.txt\""));
+        assertTrue(lines.get(3).contains("\"operation\":\"write\",\"path\":\"b.txt\""));
+        assertTrue(lines.get(4).contains("\"line\":\"cat a.txt | cat > b.txt\",\"stages\":2,\"outputBytes\":5"));
+    }
+
+    @Test
+    void testVariablesAndSubstitution() throws IOException {
+        // Test $NAME and ${NAME} expand to exported values
+        simulateCommand("export DIR=data");
+        simulateCommand("mkdir $DIR");
+        simulateCommand("pwd > ${DIR}/where.txt");
+        assertTrue(new File(tempDir, "data/where.txt").exists());
+
+        // Test $(command) is replaced by the command's output
+        outputStream.reset();
+        simulateCommand("cat $(pwd)/data/where.txt");
+        assertEquals(tempDir.getAbsolutePath() + "\n", outputStream.toString());
+
+        // Test a pure substitution used twice in one line runs once
+        File trace = new File(tempDir, "trace.jsonl");
+        cli.setTraceFile(trace);
+        simulateCommand("cat $(pwd)/data/where.txt $(pwd)/data/where.txt");
+        cli.setTraceFile(null);
+        long pwdRuns = Files.readAllLines(trace.toPath()).stream()
+                .filter(line -> line.contains("\"command\":\"pwd\"")).count();
+        assertEquals(1, pwdRuns);
+
+        // Test substitutions in arguments that are never used do not run
+        simulateCommand("pwd $(rm data/where.txt)");
+        simulateCommand("nosuchcommand $(rm data/where.txt)");
+        assertTrue(new File(tempDir, "data/where.txt").exists());
+
+        // Test unset removes a variable
+        simulateCommand("unset DIR");
+        outputStream.reset();
+        simulateCommand("set");
+        assertFalse(outputStream.toString().contains("DIR="));
+    }
+
+    @Test
+    void testXargs() throws IOException {
+        // Test piped names become arguments, run in parallel batches
+        for (int i = 0; i < 20; i++) {
+            new File(tempDir, "file" + i + ".tmp").createNewFile();
+        }
+        new File(tempDir, "keep.log").createNewFile();
+        simulateCommand("ls | xargs -n 3 -P 4 sha256sum");
+        String output = outputStream.toString();
+        assertEquals(21, output.split("\n").length);
+        // Batches are reported in input order
+        assertTrue(output.indexOf("file0.tmp") < output.indexOf("file19.tmp"));
+
+        simulateCommand("ls | xargs -P 8 rm");
+        assertEquals(0, tempDir.list().length);
+
+        // Test batches run as pipeline stages, so options handled there apply
+        Files.write(tempDir.toPath().resolve("utf16.txt"), "Hello\n".getBytes("UTF-16"));
+        outputStream.reset();
+        simulateCommand("ls | xargs cat --encoding UTF-16");
+        assertEquals("Hello\n", outputStream.toString());
+
+        // Test commands that change the session are refused
+        outputStream.reset();
+        simulateCommand("ls | xargs -P 2 export");
+        assertEquals("xargs: cannot run export\n", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("xargs");
+        assertTrue(outputStream.toString().startsWith("Usage: xargs"));
+    }
+
+    @Test
+    void testConcurrentAppendsAreNotLost() throws Exception {
+        // Test appends from several threads all land whole in the file
+        Thread[] writers = new Thread[8];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < 25; j++) {
+                    cli.processInput("pwd >> log.txt");
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        java.util.List<String> lines = Files.readAllLines(tempDir.toPath().resolve("log.txt"));
+        assertEquals(200, lines.size());
+        assertTrue(lines.stream().allMatch(line -> line.equals(tempDir.getAbsolutePath())));
+    }
+
+    @Test
+    void testRedirectTimesOutOnLockedFile() throws IOException {
+        // Test a redirect gives up when the file stays locked
+        Path file = tempDir.toPath().resolve("locked.txt");
+        Files.write(file, "Original".getBytes());
+        cli.setLockTimeout(100);
+        long timeouts = lockTimeouts();
+        outputStream.reset();
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file, StandardOpenOption.WRITE)) {
+            java.nio.channels.FileLock lock = channel.lock();
+            try {
+                simulateCommand("pwd > locked.txt");
+            } finally {
+                lock.release();
+            }
+        }
+        assertEquals("Failed to write to file: timed out waiting for the lock on locked.txt\n", outputStream.toString());
+        assertEquals("Original", new String(Files.readAllBytes(file)));
+        // The counters are shared by every session in the JVM
+        assertEquals(timeouts + 1, lockTimeouts());
+    }
+
+    @Test
+    void testFailedRedirectLeavesNoNewFile() {
+        // Test a redirect to a new file that cannot be written does not leave an empty file behind
+        // The name fits the file system, but its temp sibling is longer than the 255 byte limit
+        String name = "x".repeat(250);
+        outputStream.reset();
+        simulateCommand("pwd > " + name);
+        assertTrue(outputStream.toString().startsWith("Failed to write to file: "));
+        assertFalse(Files.exists(tempDir.toPath().resolve(name)));
+    }
+
+    @Test
+    void testTrashModeRestoreAndPurge() throws Exception {
+        // Test rm in trash mode can be undone, and the purger empties the trash once entries expire
+        FileSystem fs = MemoryFileSystem.create();
+        cli = new Command_Line(fs);
+        cli.setTrash(true);
+        simulateCommand("mkdir docs");
+        simulateCommand("pwd > docs/a.txt");
+        simulateCommand("pwd > notes.txt");
+        outputStream.reset();
+        simulateCommand("rm notes.txt");
+        simulateCommand("rm -r docs");
+        assertTrue(outputStream.toString().contains("File removed: notes.txt (moved to trash"));
+        assertTrue(outputStream.toString().contains("Removed directory and its contents: docs (moved to trash"));
+        outputStream.reset();
+        simulateCommand("ls");
+        assertEquals("", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("restore");
+        assertTrue(outputStream.toString().contains("/notes.txt"));
+        assertTrue(outputStream.toString().contains("/docs"));
+
+        outputStream.reset();
+        simulateCommand("restore docs");
+        assertEquals("Restored /docs\n", outputStream.toString());
+        outputStream.reset();
+        simulateCommand("cat docs/a.txt");
+        assertEquals("/\n", outputStream.toString());
+
+        // Test an entry whose record cannot be read is purged along with the rest
+        Path trash;
+        try (java.util.stream.Stream<Path> entries = Files.list(fs.getPath("/"))) {
+            trash = entries.filter(entry -> entry.getFileName().toString().startsWith(".cli-trash")).findFirst().get();
+        }
+        try (DirectoryStream<Path> infos = Files.newDirectoryStream(trash.resolve("info"))) {
+            for (Path info : infos) {
+                Files.write(info, "garbage".getBytes());
+            }
+        }
+        cli.setTrashRetention(0);
+        outputStream.reset();
+        for (int i = 0; i < 100 && !outputStream.toString().equals("Trash is empty\n"); i++) {
+            Thread.sleep(50);
+            outputStream.reset();
+            simulateCommand("restore");
+        }
+        assertEquals("Trash is empty\n", outputStream.toString());
+        long remaining = -1;
+        for (int i = 0; i < 100 && remaining != 0; i++) {
+            try (java.util.stream.Stream<Path> entries = Files.list(trash.resolve("files"))) {
+                remaining = entries.count();
+            }
+            if (remaining != 0) {
+                Thread.sleep(50);
+            }
+        }
+        assertEquals(0, remaining);
+        outputStream.reset();
+        simulateCommand("restore notes.txt");
+        assertEquals("restore: notes.txt: not in the trash\n", outputStream.toString());
+    }
+
+    @Test
+    void testCmpAndDiff() throws IOException {
+        // Test cmp reports the first differing byte and diff prints unified hunks
+        Files.write(tempDir.toPath().resolve("a.txt"), "one\ntwo\nthree\nfour\n".getBytes());
+        Files.write(tempDir.toPath().resolve("b.txt"), "one\n2\nthree\nfour\nfive\n".getBytes());
+        simulateCommand("cmp a.txt b.txt");
+        assertEquals("a.txt b.txt differ: byte 5, line 2\n", outputStream.toString());
+        outputStream.reset();
+        simulateCommand("cmp a.txt a.txt");
+        assertEquals("", outputStream.toString());
+
+        outputStream.reset();
+        simulateCommand("diff a.txt b.txt");
+        assertEquals("--- a.txt\n+++ b.txt\n@@ -1,4 +1,5 @@\n one\n-two\n+2\n three\n four\n+five\n",
+                outputStream.toString());
+
+        // Test diff -r reports missing entries and changed files
+        simulateCommand("mkdir left right left/only");
+        simulateCommand("cp a.txt left/same.txt");
+        simulateCommand("cp a.txt right/same.txt");
+        simulateCommand("cp a.txt left/changed.txt");
+        simulateCommand("cp b.txt right/changed.txt");
+        outputStream.reset();
+        simulateCommand("diff -r left right");
+        String output = outputStream.toString();
+        assertTrue(output.startsWith("diff -r left/changed.txt right/changed.txt\n--- left/changed.txt\n"));
+        assertTrue(output.endsWith("Only in left: only\n"));
+        assertFalse(output.contains("same.txt"));
+
+        // Test hunks far into a file are read back correctly, including a last line without a newline
+        StringBuilder longA = new StringBuilder();
+        StringBuilder longB = new StringBuilder();
+        for (int i = 1; i <= 20000; i++) {
+            longA.append("line ").append(i).append('\n');
+            longB.append(i == 15000 ? "changed" : "line " + i).append(i == 20000 ? "" : "\n");
+        }
+        Files.write(tempDir.toPath().resolve("long1.txt"), longA.toString().getBytes());
+        Files.write(tempDir.toPath().resolve("long2.txt"), longB.toString().getBytes());
+        outputStream.reset();
+        simulateCommand("diff long1.txt long2.txt");
+        assertEquals("--- long1.txt\n+++ long2.txt\n"
+                        + "@@ -14997,7 +14997,7 @@\n line 14997\n line 14998\n line 14999\n-line 15000\n+changed\n"
+                        + " line 15001\n line 15002\n line 15003\n"
+                        + "@@ -19997,4 +19997,4 @@\n line 19997\n line 19998\n line 19999\n-line 20000\n+line 20000\n"
+                        + "\\ No newline at end of file\n",
+                outputStream.toString());
+    }
+
+    @Test
+    void testCmp_LargeFilesWithoutMapping() throws IOException {
+        // Test the in-memory file system, which cannot map files, is compared by reading
+        FileSystem fs = MemoryFileSystem.create();
+        byte[] data = new byte[3 << 20];
+        new java.util.Random(1).nextBytes(data);
+        Files.write(fs.getPath("/big.bin"), data);
+        data[2 << 20] ^= 1;
+        Files.write(fs.getPath("/changed.bin"), java.util.Arrays.copyOf(data, data.length + 1));
+        cli = new Command_Line(fs);
+        simulateCommand("cmp big.bin changed.bin");
+        assertTrue(outputStream.toString().startsWith("big.bin changed.bin differ: byte " + ((2 << 20) + 1) + ", line "));
+    }
+
+    @Test
+    void testWatchAndOnChange() throws Exception {
+        // Test watch re-runs the command the given number of times
+        simulateCommand("watch -n 0.1 -c 2 pwd");
+        assertEquals(3, outputStream.toString().split("Every 0.1s: pwd").length);
+        assertEquals(3, outputStream.toString().split(java.util.regex.Pattern.quote(tempDir.getAbsolutePath())).length);
+
+        // Test a count below one is rejected rather than running forever
+        outputStream.reset();
+        simulateCommand("watch -c 0 pwd");
+        simulateCommand("on-change -c -1 . pwd");
+        assertEquals("Usage: watch [-n <seconds>] [-c <count>] <command>\n"
+                + "Usage: on-change [-c <count>] <directory> <command>\n", outputStream.toString());
+
+        // Test on-change runs the command with the changed file, both on disk and on a file system it polls
+        Files.createDirectory(tempDir.toPath().resolve("src"));
+        for (FileSystem fs : new FileSystem[]{FileSystems.getDefault(), MemoryFileSystem.create()}) {
+            Path src = fs.getPath(tempDir.getAbsolutePath(), "src");
+            if (fs != FileSystems.getDefault()) {
+                cli = new Command_Line(fs);
+                cli.setCurrentDirectory(tempDir.getAbsolutePath());
+                Files.createDirectories(src);
+            }
+            outputStream.reset();
+            Thread watcher = new Thread(() -> simulateCommand("on-change -c 1 src cat"));
+            watcher.start();
+            for (int i = 0; i < 100 && !outputStream.toString().startsWith("Watching"); i++) {
+                Thread.sleep(50);
+            }
+            Files.write(src.resolve("a.txt"), "changed\n".getBytes());
+            watcher.join(10000);
+            assertFalse(watcher.isAlive());
+            assertTrue(outputStream.toString().endsWith("changed\n"));
+        }
+
+        // Test $CHANGED is gone once on-change returns
+        outputStream.reset();
+        simulateCommand("set");
+        assertFalse(outputStream.toString().contains("CHANGED"));
+    }
+
+    private long lockTimeouts() {
+        outputStream.reset();
+        simulateCommand("locks");
+        java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("Timed out: +(\\d+)").matcher(outputStream.toString());
+        assertTrue(matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
 
     private void simulateCommand(String command) {
         // Create a new scanner with the command and process it
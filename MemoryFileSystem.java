@@ -0,0 +1,1074 @@
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.PatternSyntaxException;
+
+// A java.nio FileSystem kept entirely in memory, so sessions and tests can run without touching the disk.
+// Paths are Unix style ("/" separated, a single "/" root). All operations lock the whole file system.
+public class MemoryFileSystem extends FileSystem {
+    private static final Provider PROVIDER = new Provider();
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final Node root = new Node(true);
+    private final MemoryPath rootPath = new MemoryPath(this, true, new String[0]);
+    private final FileStore store = new MemoryFileStore();
+    private volatile boolean open = true;
+
+    public static FileSystem create() {
+        return new MemoryFileSystem();
+    }
+
+    private MemoryFileSystem() {
+    }
+
+    @Override
+    public FileSystemProvider provider() {
+        return PROVIDER;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.singletonList(rootPath);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.singletonList(store);
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for (String part : more) {
+            if (!part.isEmpty()) {
+                path.append('/').append(part);
+            }
+        }
+        String text = path.toString();
+        List<String> names = new ArrayList<>();
+        for (String name : text.split("/")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return new MemoryPath(this, text.startsWith("/"), names.toArray(new String[0]));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        // Matched on the string form: the default file system can't represent every name stored here
+        // (e.g. non-ASCII names under the C locale)
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected syntax:pattern, got " + syntaxAndPattern);
+        }
+        String syntax = syntaxAndPattern.substring(0, colon);
+        String pattern = syntaxAndPattern.substring(colon + 1);
+        java.util.regex.Pattern regex;
+        if (syntax.equalsIgnoreCase("regex")) {
+            regex = java.util.regex.Pattern.compile(pattern);
+        } else if (syntax.equalsIgnoreCase("glob")) {
+            regex = java.util.regex.Pattern.compile(globToRegex(pattern));
+        } else {
+            throw new UnsupportedOperationException("Syntax not supported: " + syntax);
+        }
+        return path -> regex.matcher(path.toString()).matches();
+    }
+
+    // Same rules as the platform glob: * stays within a name, ** crosses "/", ? is one character,
+    // [...] and [!...] are classes and {a,b} are alternatives (not nested)
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder("^");
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (++i == glob.length()) {
+                        throw new PatternSyntaxException("No character to escape", glob, i - 1);
+                    }
+                    appendLiteral(regex, glob.charAt(i));
+                    break;
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[': {
+                    int end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        throw new PatternSyntaxException("Missing ']'", glob, i);
+                    }
+                    regex.append("[[^/]&&[");
+                    int from = i + 1;
+                    if (glob.charAt(from) == '!') {
+                        regex.append('^');
+                        from++;
+                    }
+                    for (int j = from; j < end; j++) {
+                        char member = glob.charAt(j);
+                        if (member == '-' && j > from && j + 1 < end) {
+                            regex.append('-');
+                        } else {
+                            appendLiteral(regex, member);
+                        }
+                    }
+                    regex.append("]]");
+                    i = end;
+                    break;
+                }
+                case '{':
+                    if (inGroup) {
+                        throw new PatternSyntaxException("Cannot nest groups", glob, i);
+                    }
+                    regex.append("(?:(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    if (inGroup) {
+                        regex.append("))");
+                        inGroup = false;
+                    } else {
+                        appendLiteral(regex, c);
+                    }
+                    break;
+                case ',':
+                    if (inGroup) {
+                        regex.append(")|(?:");
+                    } else {
+                        appendLiteral(regex, c);
+                    }
+                    break;
+                default:
+                    appendLiteral(regex, c);
+            }
+        }
+        if (inGroup) {
+            throw new PatternSyntaxException("Missing '}'", glob, glob.length() - 1);
+        }
+        return regex.append('$').toString();
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        if ("\\^$.|?*+()[]{}&-".indexOf(c) >= 0) {
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("Watching is not supported by the in-memory file system");
+    }
+
+    // Looks up the node for an absolute, normalized path, or null
+    private Node find(MemoryPath path) {
+        Node node = root;
+        for (String name : path.names) {
+            if (!node.directory) {
+                return null;
+            }
+            node = node.children.get(name);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private Node existing(Path path) throws NoSuchFileException {
+        Node node = find(absolute(path));
+        if (node == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return node;
+    }
+
+    private Node parentDirectory(MemoryPath path) throws IOException {
+        MemoryPath parent = path.getParent();
+        Node node = parent == null ? null : find(parent);
+        if (node == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        if (!node.directory) {
+            throw new NotDirectoryException(parent.toString());
+        }
+        return node;
+    }
+
+    private MemoryPath absolute(Path path) {
+        if (!(path instanceof MemoryPath) || ((MemoryPath) path).fs != this) {
+            throw new ProviderMismatchException();
+        }
+        return ((MemoryPath) path).toAbsolutePath().normalize();
+    }
+
+    private static class Node {
+        final boolean directory;
+        final TreeMap<String, Node> children;
+        final long id = NEXT_ID.incrementAndGet();
+        byte[] data = new byte[0];
+        int size;
+        FileTime created;
+        FileTime modified;
+        FileTime accessed;
+
+        Node(boolean directory) {
+            this.directory = directory;
+            this.children = directory ? new TreeMap<>() : null;
+            created = modified = accessed = FileTime.fromMillis(System.currentTimeMillis());
+        }
+
+        void touch() {
+            modified = accessed = FileTime.fromMillis(System.currentTimeMillis());
+        }
+
+        Node copy() {
+            Node copy = new Node(directory);
+            if (!directory) {
+                copy.data = Arrays.copyOf(data, size);
+                copy.size = size;
+            }
+            return copy;
+        }
+    }
+
+    private static class MemoryPath implements Path {
+        final MemoryFileSystem fs;
+        final boolean absolute;
+        final String[] names;
+
+        MemoryPath(MemoryFileSystem fs, boolean absolute, String[] names) {
+            this.fs = fs;
+            this.absolute = absolute;
+            this.names = names;
+        }
+
+        @Override
+        public FileSystem getFileSystem() {
+            return fs;
+        }
+
+        @Override
+        public boolean isAbsolute() {
+            return absolute;
+        }
+
+        @Override
+        public Path getRoot() {
+            return absolute ? fs.rootPath : null;
+        }
+
+        @Override
+        public Path getFileName() {
+            return names.length == 0 ? null : new MemoryPath(fs, false, new String[]{names[names.length - 1]});
+        }
+
+        @Override
+        public MemoryPath getParent() {
+            if (names.length == 0 || (names.length == 1 && !absolute)) {
+                return null;
+            }
+            return new MemoryPath(fs, absolute, Arrays.copyOf(names, names.length - 1));
+        }
+
+        @Override
+        public int getNameCount() {
+            return names.length;
+        }
+
+        @Override
+        public Path getName(int index) {
+            return new MemoryPath(fs, false, new String[]{names[index]});
+        }
+
+        @Override
+        public Path subpath(int beginIndex, int endIndex) {
+            return new MemoryPath(fs, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+        }
+
+        @Override
+        public boolean startsWith(Path other) {
+            if (!(other instanceof MemoryPath)) {
+                return false;
+            }
+            MemoryPath path = (MemoryPath) other;
+            if (path.absolute != absolute || path.names.length > names.length) {
+                return false;
+            }
+            for (int i = 0; i < path.names.length; i++) {
+                if (!names[i].equals(path.names[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endsWith(Path other) {
+            if (!(other instanceof MemoryPath)) {
+                return false;
+            }
+            MemoryPath path = (MemoryPath) other;
+            if (path.absolute) {
+                return equals(path);
+            }
+            if (path.names.length > names.length) {
+                return false;
+            }
+            for (int i = 0; i < path.names.length; i++) {
+                if (!names[names.length - path.names.length + i].equals(path.names[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public MemoryPath normalize() {
+            Deque<String> stack = new ArrayDeque<>();
+            for (String name : names) {
+                if (name.equals(".")) {
+                    continue;
+                }
+                if (name.equals("..")) {
+                    if (!stack.isEmpty() && !stack.peekLast().equals("..")) {
+                        stack.removeLast();
+                        continue;
+                    }
+                    if (absolute) {
+                        // ".." at the root stays at the root
+                        continue;
+                    }
+                }
+                stack.addLast(name);
+            }
+            return new MemoryPath(fs, absolute, stack.toArray(new String[0]));
+        }
+
+        @Override
+        public Path resolve(Path other) {
+            MemoryPath path = (MemoryPath) other;
+            if (path.absolute) {
+                return path;
+            }
+            String[] joined = Arrays.copyOf(names, names.length + path.names.length);
+            System.arraycopy(path.names, 0, joined, names.length, path.names.length);
+            return new MemoryPath(fs, absolute, joined);
+        }
+
+        @Override
+        public Path resolve(String other) {
+            return resolve(fs.getPath(other));
+        }
+
+        @Override
+        public Path relativize(Path other) {
+            MemoryPath path = (MemoryPath) other;
+            int common = 0;
+            while (common < names.length && common < path.names.length && names[common].equals(path.names[common])) {
+                common++;
+            }
+            List<String> relative = new ArrayList<>();
+            for (int i = common; i < names.length; i++) {
+                relative.add("..");
+            }
+            relative.addAll(Arrays.asList(path.names).subList(common, path.names.length));
+            return new MemoryPath(fs, false, relative.toArray(new String[0]));
+        }
+
+        @Override
+        public URI toUri() {
+            return URI.create("memory:" + toAbsolutePath());
+        }
+
+        @Override
+        public MemoryPath toAbsolutePath() {
+            return absolute ? this : new MemoryPath(fs, true, names);
+        }
+
+        @Override
+        public Path toRealPath(LinkOption... options) throws IOException {
+            MemoryPath real = toAbsolutePath().normalize();
+            synchronized (fs) {
+                fs.existing(real);
+            }
+            return real;
+        }
+
+        @Override
+        public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int compareTo(Path other) {
+            return toString().compareTo(other.toString());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof MemoryPath && ((MemoryPath) other).fs == fs
+                    && ((MemoryPath) other).absolute == absolute && Arrays.equals(((MemoryPath) other).names, names);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(names) * 31 + (absolute ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            String joined = String.join("/", names);
+            return absolute ? "/" + joined : joined;
+        }
+    }
+
+    // A snapshot of a node's attributes, like the ones the default provider returns
+    private static class Attributes implements BasicFileAttributes {
+        private final boolean directory;
+        private final long size;
+        private final long id;
+        private final FileTime created;
+        private final FileTime modified;
+        private final FileTime accessed;
+
+        Attributes(Node node) {
+            directory = node.directory;
+            size = node.directory ? 0 : node.size;
+            id = node.id;
+            created = node.created;
+            modified = node.modified;
+            accessed = node.accessed;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return modified;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return accessed;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return created;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return id;
+        }
+    }
+
+    // A file channel over a node's byte array; writes grow the array as needed
+    private static class MemoryFileChannel extends FileChannel {
+        private final MemoryFileSystem fs;
+        private final Node node;
+        private final boolean readable;
+        private final boolean writable;
+        private final boolean append;
+        private long position;
+
+        MemoryFileChannel(MemoryFileSystem fs, Node node, Set<? extends OpenOption> options) {
+            this.fs = fs;
+            this.node = node;
+            this.writable = options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+            this.readable = options.contains(StandardOpenOption.READ) || !writable;
+            this.append = options.contains(StandardOpenOption.APPEND);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int read = read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int read = read(dsts[i]);
+                if (read < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                total += read;
+            }
+            return total;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            synchronized (fs) {
+                if (append) {
+                    position = node.size;
+                }
+                int written = write(src, position);
+                position += written;
+                return written;
+            }
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            synchronized (fs) {
+                return node.size;
+            }
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            checkWritable();
+            synchronized (fs) {
+                if (size < node.size) {
+                    node.size = (int) size;
+                    node.touch();
+                }
+                position = Math.min(position, size);
+            }
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            // Nothing to flush
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, Math.max(0, size() - position)));
+            read(buffer, position);
+            buffer.flip();
+            return target.write(buffer);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 8192));
+            long total = 0;
+            while (total < count) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - total));
+                int read = src.read(buffer);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                total += write(buffer, position + total);
+            }
+            return total;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (!readable) {
+                throw new NonReadableChannelException();
+            }
+            synchronized (fs) {
+                if (position >= node.size) {
+                    return -1;
+                }
+                int count = (int) Math.min(dst.remaining(), node.size - position);
+                dst.put(node.data, (int) position, count);
+                node.accessed = FileTime.fromMillis(System.currentTimeMillis());
+                return count;
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            checkWritable();
+            synchronized (fs) {
+                int count = src.remaining();
+                long end = position + count;
+                if (end > Integer.MAX_VALUE) {
+                    throw new IOException("File too large for the in-memory file system");
+                }
+                if (end > node.data.length) {
+                    node.data = Arrays.copyOf(node.data, (int) Math.min(Integer.MAX_VALUE, Math.max(end, node.data.length * 2L)));
+                }
+                src.get(node.data, (int) position, count);
+                node.size = Math.max(node.size, (int) end);
+                node.touch();
+                return count;
+            }
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException("Memory mapping is not supported by the in-memory file system");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            return new MemoryFileLock(this, position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            return new MemoryFileLock(this, position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            // Nothing to release
+        }
+
+        private void checkWritable() {
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+        }
+    }
+
+    // Locks always succeed: everything lives in one process, which coordinates its writers itself
+    private static class MemoryFileLock extends FileLock {
+        private boolean valid = true;
+
+        MemoryFileLock(FileChannel channel, long position, long size, boolean shared) {
+            super(channel, position, size, shared);
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid && channel().isOpen();
+        }
+
+        @Override
+        public void release() {
+            valid = false;
+        }
+    }
+
+    private static class MemoryFileStore extends FileStore {
+        @Override
+        public String name() {
+            return "memory";
+        }
+
+        @Override
+        public String type() {
+            return "memory";
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return false;
+        }
+
+        @Override
+        public long getTotalSpace() {
+            return Runtime.getRuntime().maxMemory();
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return Runtime.getRuntime().freeMemory();
+        }
+
+        @Override
+        public long getUnallocatedSpace() {
+            return Runtime.getRuntime().freeMemory();
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+            return type == BasicFileAttributeView.class;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(String name) {
+            return name.equals("basic");
+        }
+
+        @Override
+        public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) {
+            throw new UnsupportedOperationException(attribute);
+        }
+    }
+
+    private static class Provider extends FileSystemProvider {
+        @Override
+        public String getScheme() {
+            return "memory";
+        }
+
+        @Override
+        public FileSystem newFileSystem(URI uri, Map<String, ?> env) {
+            return new MemoryFileSystem();
+        }
+
+        @Override
+        public FileSystem getFileSystem(URI uri) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+
+        @Override
+        public Path getPath(URI uri) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+
+        @Override
+        public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+                                                  FileAttribute<?>... attrs) throws IOException {
+            return newFileChannel(path, options, attrs);
+        }
+
+        @Override
+        public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options,
+                                          FileAttribute<?>... attrs) throws IOException {
+            MemoryFileSystem fs = fileSystem(path);
+            MemoryPath target = fs.absolute(path);
+            synchronized (fs) {
+                Node node = fs.find(target);
+                if (node == null) {
+                    if (!options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW)) {
+                        throw new NoSuchFileException(path.toString());
+                    }
+                    Node parent = fs.parentDirectory(target);
+                    node = new Node(false);
+                    parent.children.put(target.names[target.names.length - 1], node);
+                    parent.touch();
+                } else if (options.contains(StandardOpenOption.CREATE_NEW)) {
+                    throw new FileAlreadyExistsException(path.toString());
+                } else if (node.directory) {
+                    throw new FileSystemException(path.toString(), null, "Is a directory");
+                }
+                MemoryFileChannel channel = new MemoryFileChannel(fs, node, options);
+                if (options.contains(StandardOpenOption.TRUNCATE_EXISTING) && channel.writable) {
+                    node.size = 0;
+                    node.touch();
+                }
+                return channel;
+            }
+        }
+
+        @Override
+        public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+                throws IOException {
+            MemoryFileSystem fs = fileSystem(dir);
+            List<Path> entries = new ArrayList<>();
+            synchronized (fs) {
+                Node node = fs.existing(dir);
+                if (!node.directory) {
+                    throw new NotDirectoryException(dir.toString());
+                }
+                for (String name : node.children.keySet()) {
+                    Path entry = dir.resolve(name);
+                    if (filter.accept(entry)) {
+                        entries.add(entry);
+                    }
+                }
+            }
+            return new DirectoryStream<Path>() {
+                @Override
+                public Iterator<Path> iterator() {
+                    return entries.iterator();
+                }
+
+                @Override
+                public void close() {
+                    // Entries were copied up front
+                }
+            };
+        }
+
+        @Override
+        public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+            MemoryFileSystem fs = fileSystem(dir);
+            MemoryPath target = fs.absolute(dir);
+            synchronized (fs) {
+                if (target.names.length == 0 || fs.find(target) != null) {
+                    throw new FileAlreadyExistsException(dir.toString());
+                }
+                Node parent = fs.parentDirectory(target);
+                parent.children.put(target.names[target.names.length - 1], new Node(true));
+                parent.touch();
+            }
+        }
+
+        @Override
+        public void delete(Path path) throws IOException {
+            MemoryFileSystem fs = fileSystem(path);
+            MemoryPath target = fs.absolute(path);
+            synchronized (fs) {
+                Node node = fs.existing(target);
+                if (target.names.length == 0) {
+                    throw new FileSystemException(path.toString(), null, "Cannot delete the root");
+                }
+                if (node.directory && !node.children.isEmpty()) {
+                    throw new DirectoryNotEmptyException(path.toString());
+                }
+                Node parent = fs.parentDirectory(target);
+                parent.children.remove(target.names[target.names.length - 1]);
+                parent.touch();
+            }
+        }
+
+        @Override
+        public void copy(Path source, Path target, CopyOption... options) throws IOException {
+            transfer(source, target, false, options);
+        }
+
+        @Override
+        public void move(Path source, Path target, CopyOption... options) throws IOException {
+            transfer(source, target, true, options);
+        }
+
+        private void transfer(Path source, Path target, boolean move, CopyOption... options) throws IOException {
+            MemoryFileSystem fs = fileSystem(source);
+            MemoryPath from = fs.absolute(source);
+            MemoryPath to = fs.absolute(target);
+            // An atomic move replaces the target, as rename(2) does on the default provider
+            boolean replace = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING)
+                    || move && Arrays.asList(options).contains(StandardCopyOption.ATOMIC_MOVE);
+            synchronized (fs) {
+                Node node = fs.existing(from);
+                if (from.equals(to)) {
+                    return;
+                }
+                if (move && to.startsWith(from)) {
+                    throw new FileSystemException(source.toString(), target.toString(), "Cannot move a directory into itself");
+                }
+                Node existing = fs.find(to);
+                if (existing != null) {
+                    if (!replace) {
+                        throw new FileAlreadyExistsException(target.toString());
+                    }
+                    if (existing.directory && !existing.children.isEmpty()) {
+                        throw new DirectoryNotEmptyException(target.toString());
+                    }
+                }
+                Node toParent = fs.parentDirectory(to);
+                if (move) {
+                    Node fromParent = fs.parentDirectory(from);
+                    fromParent.children.remove(from.names[from.names.length - 1]);
+                    fromParent.touch();
+                }
+                // Like the default provider, copying a directory creates an empty one
+                toParent.children.put(to.names[to.names.length - 1], move ? node : node.copy());
+                toParent.touch();
+            }
+        }
+
+        @Override
+        public boolean isSameFile(Path path, Path path2) throws IOException {
+            MemoryFileSystem fs = fileSystem(path);
+            synchronized (fs) {
+                return fs.existing(path) == fs.existing(path2);
+            }
+        }
+
+        @Override
+        public boolean isHidden(Path path) {
+            Path name = path.getFileName();
+            return name != null && name.toString().startsWith(".");
+        }
+
+        @Override
+        public FileStore getFileStore(Path path) throws IOException {
+            MemoryFileSystem fs = fileSystem(path);
+            synchronized (fs) {
+                fs.existing(path);
+            }
+            return fs.store;
+        }
+
+        @Override
+        public void checkAccess(Path path, AccessMode... modes) throws IOException {
+            MemoryFileSystem fs = fileSystem(path);
+            synchronized (fs) {
+                fs.existing(path);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+            if (type != BasicFileAttributeView.class) {
+                return null;
+            }
+            MemoryFileSystem fs = fileSystem(path);
+            return (V) new BasicFileAttributeView() {
+                @Override
+                public String name() {
+                    return "basic";
+                }
+
+                @Override
+                public BasicFileAttributes readAttributes() throws IOException {
+                    return Provider.this.readAttributes(path, BasicFileAttributes.class);
+                }
+
+                @Override
+                public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+                        throws IOException {
+                    synchronized (fs) {
+                        Node node = fs.existing(path);
+                        if (lastModifiedTime != null) {
+                            node.modified = lastModifiedTime;
+                        }
+                        if (lastAccessTime != null) {
+                            node.accessed = lastAccessTime;
+                        }
+                        if (createTime != null) {
+                            node.created = createTime;
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+                throws IOException {
+            if (type != BasicFileAttributes.class) {
+                throw new UnsupportedOperationException(type.getName());
+            }
+            MemoryFileSystem fs = fileSystem(path);
+            synchronized (fs) {
+                return (A) new Attributes(fs.existing(path));
+            }
+        }
+
+        @Override
+        public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+                throws IOException {
+            BasicFileAttributes attrs = readAttributes(path, BasicFileAttributes.class);
+            Map<String, Object> map = new HashMap<>();
+            map.put("lastModifiedTime", attrs.lastModifiedTime());
+            map.put("lastAccessTime", attrs.lastAccessTime());
+            map.put("creationTime", attrs.creationTime());
+            map.put("size", attrs.size());
+            map.put("isRegularFile", attrs.isRegularFile());
+            map.put("isDirectory", attrs.isDirectory());
+            map.put("isSymbolicLink", false);
+            map.put("isOther", false);
+            map.put("fileKey", attrs.fileKey());
+            return map;
+        }
+
+        @Override
+        public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+            BasicFileAttributeView view = getFileAttributeView(path, BasicFileAttributeView.class);
+            switch (attribute.startsWith("basic:") ? attribute.substring(6) : attribute) {
+                case "lastModifiedTime":
+                    view.setTimes((FileTime) value, null, null);
+                    break;
+                case "lastAccessTime":
+                    view.setTimes(null, (FileTime) value, null);
+                    break;
+                case "creationTime":
+                    view.setTimes(null, null, (FileTime) value);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(attribute);
+            }
+        }
+
+        private static MemoryFileSystem fileSystem(Path path) {
+            if (!(path instanceof MemoryPath)) {
+                throw new ProviderMismatchException();
+            }
+            return ((MemoryPath) path).fs;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+class MemoryFileSystemTest {
+    private FileSystem fs;
+
+    @BeforeEach
+    void setUp() {
+        fs = MemoryFileSystem.create();
+    }
+
+    @Test
+    void testPaths() {
+        Path path = fs.getPath("/a/b/../c/./d.txt");
+        assertTrue(path.isAbsolute());
+        assertEquals("/a/c/d.txt", path.normalize().toString());
+        assertEquals("d.txt", path.getFileName().toString());
+        assertEquals("/a/b/x", fs.getPath("/a/b").resolve("x").toString());
+        assertEquals("/x", fs.getPath("/a/b").resolve("/x").toString());
+        assertEquals("../c", fs.getPath("/a/b").relativize(fs.getPath("/a/c")).toString());
+        assertTrue(fs.getPath("/a/b/c").startsWith(fs.getPath("/a/b")));
+        assertNull(fs.getPath("/").getParent());
+    }
+
+    @Test
+    void testFilesAndDirectories() throws IOException {
+        Path dir = Files.createDirectories(fs.getPath("/data/logs"));
+        Path file = dir.resolve("app.log");
+        Files.write(file, "line 1\n".getBytes());
+        Files.write(file, "line 2\n".getBytes(), StandardOpenOption.APPEND);
+        assertEquals("line 1\nline 2\n", new String(Files.readAllBytes(file)));
+        assertEquals(14, Files.size(file));
+        assertTrue(Files.isDirectory(dir));
+        assertTrue(Files.isRegularFile(file));
+
+        assertThrows(DirectoryNotEmptyException.class, () -> Files.delete(dir));
+        assertThrows(FileAlreadyExistsException.class, () -> Files.createFile(file));
+
+        Path moved = fs.getPath("/data/app.log");
+        Files.move(file, moved);
+        assertFalse(Files.exists(file));
+        Files.copy(moved, dir.resolve("copy.log"));
+        assertThrows(FileAlreadyExistsException.class, () -> Files.move(dir.resolve("copy.log"), moved));
+        Files.move(dir.resolve("copy.log"), moved, StandardCopyOption.ATOMIC_MOVE);
+        Files.copy(moved, dir.resolve("copy.log"));
+
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(fs.getPath("/data"))) {
+            entries.forEach(entry -> names.add(entry.getFileName().toString()));
+        }
+        assertEquals(List.of("app.log", "logs"), names);
+    }
+
+    @Test
+    void testFileChannel() throws IOException {
+        Path file = fs.getPath("/channel.bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+            channel.write(ByteBuffer.wrap(new byte[]{9}), 1);
+            channel.truncate(3);
+        }
+        assertArrayEquals(new byte[]{1, 9, 3}, Files.readAllBytes(file));
+        assertThrows(NoSuchFileException.class, () -> FileChannel.open(fs.getPath("/missing"), StandardOpenOption.READ));
+    }
+
+    @Test
+    void testPathMatcher() {
+        PathMatcher txt = fs.getPathMatcher("glob:*.{txt,md}");
+        assertTrue(txt.matches(fs.getPath("caf\u00e9.txt")));
+        assertTrue(txt.matches(fs.getPath("notes.md")));
+        assertFalse(txt.matches(fs.getPath("dir/notes.md")));
+        assertTrue(fs.getPathMatcher("glob:**/[!.]?.log").matches(fs.getPath("/a/b/x1.log")));
+        assertFalse(fs.getPathMatcher("glob:[a-c]*").matches(fs.getPath("d.txt")));
+        assertTrue(fs.getPathMatcher("regex:.*\\.bin").matches(fs.getPath("/data.bin")));
+    }
+}